@@ -3,10 +3,20 @@ package bus;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.TimeZone;
 import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /*
  * A class which contains main method to run anything we want. If one wants to
@@ -58,6 +68,304 @@ class ArbitraryCodeExecutor {
 		path.writeToFolder(new File("uk/debug"));
 	}
 
+	/*
+	 * Compares Utils.planarDistance with Utils.greatCircleDistance on random
+	 * pairs of points at most Utils.PLANAR_DISTANCE_RANGE apart, with the
+	 * first point's latitude within [-60, 60] degrees. Pairs closer than
+	 * SAME_PLACE_DISTANCE_RANGE are skipped, since there Math.acos itself
+	 * loses precision.
+	 */
+	static void checkPlanarDistance() {
+		Random random = new Random(0);
+		double maxRelativeError = 0.0;
+		for (int i = 0; i < 1000000; i++) {
+			GpsPoint p1 = new GpsPoint(0L, 120.0 * random.nextDouble() - 60.0,
+					360.0 * random.nextDouble() - 180.0);
+			double range = Utils.PLANAR_DISTANCE_RANGE / Utils.SCALE_TO_RADIANS;
+			GpsPoint p2 = new GpsPoint(0L,
+					p1.latitude + range * (2.0 * random.nextDouble() - 1.0),
+					p1.longitude + range * (2.0 * random.nextDouble() - 1.0));
+
+			double greatCircle = Utils.greatCircleDistance(p1.unitX(),
+					p1.unitY(), p1.unitZ(), p2.unitX(), p2.unitY(), p2.unitZ());
+			if (greatCircle > Utils.PLANAR_DISTANCE_RANGE
+					|| greatCircle < Utils.SAME_PLACE_DISTANCE_RANGE) {
+				continue;
+			}
+			double planar = Utils.planarDistance(p1.unitX(), p1.unitY(),
+					p1.unitZ(), p2.unitX(), p2.unitY(), p2.unitZ());
+			maxRelativeError = Math.max(maxRelativeError,
+					Math.abs(planar - greatCircle) / greatCircle);
+		}
+
+		System.out.println("Maximal relative error " + maxRelativeError
+				+ ", allowed " + Utils.PLANAR_DISTANCE_ERROR_BOUND);
+		if (maxRelativeError > Utils.PLANAR_DISTANCE_ERROR_BOUND) {
+			throw new RuntimeException("Planar distance is too inaccurate");
+		}
+	}
+
+	/*
+	 * Compares TimestampCodec.format and parse with SimpleDateFormat in the
+	 * default time zone (run with -Duser.timezone=... for others), on 3M
+	 * timestamps: every 10 minutes over two years (all daylight saving
+	 * switches), random ones from 1970 to 2100, and random ones as old as
+	 * year 1000, which the codec hands to SimpleDateFormat. Dates that
+	 * SimpleDateFormat rolls over (e.g. 2016-02-30) are parsed as well.
+	 */
+	static void checkTimestampCodec() throws ParseException {
+		SimpleDateFormat format = new SimpleDateFormat(
+				TimestampCodec.SIMPLE_DATE_FORMAT);
+		Random random = new Random(0);
+		long year2015 = 1420070400L;
+		for (int i = 0; i < 3000000; i++) {
+			long timestamp;
+			if (i < 2 * 52560) {
+				timestamp = year2015 + 600L * i;
+			} else if (i % 10 != 0) {
+				timestamp = (long) (4102444800.0 * random.nextDouble());
+			} else {
+				timestamp = -30610224000L
+						+ (long) (30610224000.0 * random.nextDouble());
+			}
+			String expected = format.format(new Date(1000L * timestamp));
+			String formatted = TimestampCodec.format(timestamp);
+			long expectedTimestamp = format.parse(expected).getTime() / 1000L;
+			long parsed = TimestampCodec.parse(expected);
+			if (!formatted.equals(expected) || parsed != expectedTimestamp) {
+				throw new RuntimeException(timestamp + " formatted as "
+						+ formatted + " instead of " + expected
+						+ ", parsed back as " + parsed + " instead of "
+						+ expectedTimestamp);
+			}
+		}
+
+		String[] rolledOver = { "2016-02-30 10:00:00", "2016-13-01 00:00:00",
+				"2016-10-11 24:00:00", "2016-10-11 16:60:61" };
+		for (String date : rolledOver) {
+			if (TimestampCodec.parse(date) != format.parse(date).getTime()
+					/ 1000L) {
+				throw new RuntimeException(date + " parsed differently");
+			}
+		}
+		System.out.println("TimestampCodec agrees with SimpleDateFormat in "
+				+ TimeZone.getDefault().getID());
+	}
+
+	/* A vehicle entry of a snapshot, with the values written into it */
+	private static class SnapshotEntry {
+		final int vehicleId;
+		final long timestamp;
+		final double latitude;
+		final double longitude;
+		final String json;
+
+		SnapshotEntry(Random random) {
+			vehicleId = random.nextInt(100000);
+			timestamp = 1476000000L + random.nextInt(10000000);
+			String latitudeText = randomNumber(random, 90.0);
+			String longitudeText = randomNumber(random, 180.0);
+			latitude = Double.parseDouble(latitudeText);
+			longitude = Double.parseDouble(longitudeText);
+
+			ArrayList<String> fields = new ArrayList<String>();
+			fields.add("\"vehicle_id\":\"" + vehicleId + "\"");
+			fields.add("\"timestamp\":" + timestamp);
+			fields.add("\"received_timestamp\":" + (timestamp + 7));
+			fields.add("\"bearing\":" + randomNumber(random, 360.0));
+			fields.add("\"latitude\":" + latitudeText);
+			fields.add("\"longitude\":" + longitudeText);
+			fields.add("\"trip_id\":\"EBS_" + random.nextInt(100) + "\"");
+			/* Any order, as the parser does not depend on it */
+			Collections.shuffle(fields, random);
+			json = "{" + String.join(",", fields) + "}";
+		}
+	}
+
+	/*
+	 * Coordinates as feeds write them: shortest representation of a double
+	 * (up to 17 digits, sometimes with an exponent), fixed number of decimals
+	 * or an integer.
+	 */
+	private static String randomNumber(Random random, double range) {
+		double value = range * (2.0 * random.nextDouble() - 1.0);
+		switch (random.nextInt(4)) {
+		case 0:
+			return Double.toString(value);
+		case 1:
+			return Double.toString(value * 1e-7);
+		case 2:
+			return String.format(Locale.ROOT, "%." + random.nextInt(9) + "f",
+					value);
+		default:
+			return Long.toString((long) value);
+		}
+	}
+
+	private static final Pattern OLD_ENTRY = Pattern.compile("\\{[^}]*");
+	private static final Pattern OLD_VEHICLE_ID = Pattern
+			.compile("vehicle_id\":\"[0-9]+");
+	private static final Pattern OLD_TIMESTAMP = Pattern
+			.compile("\"timestamp\":[0-9]+");
+	private static final Pattern OLD_LATITUDE = Pattern
+			.compile("latitude\":[^,]+");
+	private static final Pattern OLD_LONGITUDE = Pattern
+			.compile("longitude\":[^,]+");
+
+	/* The group of the pattern's first match, as the regex parser found it */
+	private static String firstMatch(Pattern pattern, String text) {
+		Matcher matcher = pattern.matcher(text);
+		matcher.find();
+		return matcher.group();
+	}
+
+	/*
+	 * Compares SnapshotParser with the regexes it replaced (those of
+	 * updateBusesTravelHistoryWithFile and GpsPoint(String)) and with
+	 * Double.parseDouble, on random snapshots. Values must be equal bit for
+	 * bit, not just close.
+	 */
+	static void checkSnapshotParser() {
+		Random random = new Random(0);
+		int entries = 0;
+		for (int s = 0; s < 10000; s++) {
+			ArrayList<SnapshotEntry> expected = new ArrayList<SnapshotEntry>();
+			StringBuilder json = new StringBuilder("[");
+			for (int v = random.nextInt(20); v > 0; v--) {
+				SnapshotEntry entry = new SnapshotEntry(random);
+				json.append(expected.isEmpty() ? "" : ",").append(entry.json);
+				expected.add(entry);
+			}
+			String snapshot = json.append("]").toString();
+			byte[] bytes = snapshot.getBytes(StandardCharsets.US_ASCII);
+
+			SnapshotParser parser = new SnapshotParser(bytes, 0, bytes.length);
+			Matcher oldEntries = OLD_ENTRY.matcher(snapshot);
+			for (SnapshotEntry entry : expected) {
+				if (!parser.next() || !oldEntries.find()) {
+					throw new RuntimeException("Entry missing in " + snapshot);
+				}
+				String oldEntry = oldEntries.group();
+				int oldVehicleId = Integer.parseInt(
+						firstMatch(OLD_VEHICLE_ID, oldEntry).substring(13));
+				long oldTimestamp = Long.parseLong(
+						firstMatch(OLD_TIMESTAMP, oldEntry).substring(12));
+				double oldLatitude = Double.parseDouble(
+						firstMatch(OLD_LATITUDE, oldEntry).substring(10));
+				double oldLongitude = Double.parseDouble(
+						firstMatch(OLD_LONGITUDE, oldEntry).substring(11));
+
+				if (parser.vehicleId != entry.vehicleId
+						|| oldVehicleId != entry.vehicleId
+						|| parser.timestamp != entry.timestamp
+						|| oldTimestamp != entry.timestamp
+						|| Double.compare(parser.latitude, entry.latitude) != 0
+						|| Double.compare(oldLatitude, entry.latitude) != 0
+						|| Double.compare(parser.longitude,
+								entry.longitude) != 0
+						|| Double.compare(oldLongitude, entry.longitude) != 0) {
+					throw new RuntimeException("SnapshotParser read "
+							+ parser.vehicleId + "," + parser.timestamp + ","
+							+ parser.latitude + "," + parser.longitude
+							+ " from " + entry.json);
+				}
+				entries++;
+			}
+			if (parser.next()) {
+				throw new RuntimeException("Extra entry in " + snapshot);
+			}
+		}
+		System.out.println("SnapshotParser agrees on " + entries + " entries");
+	}
+
+	/* Strings a framer must not take for brackets or for the string's end */
+	private static final String[] TRICKY_STRINGS = { "\"]\"", "\"}\"",
+			"\"[{\"", "\"Stop [A] {B}\"", "\"say \\\"}]\\\"\"",
+			"\"C:\\\\\"", "\"\\\\\\\"]\"" };
+	private static final String[] SEPARATORS = { "", "\n", "\r\n", " ",
+			",", "\t\n" };
+
+	/*
+	 * Checks that SnapshotFramer splits a stream of random snapshots back
+	 * into the same snapshots, for chunks cut at arbitrary byte boundaries
+	 * (from single bytes to whole streams). Snapshots are arrays of entries
+	 * or single entries, with strings containing brackets, escaped quotes and
+	 * backslashes. With a small maximum snapshot size, exactly the longer
+	 * snapshots have to be dropped and the others still found.
+	 */
+	static void checkSnapshotFramer() {
+		Random random = new Random(0);
+		ArrayList<String> snapshots = new ArrayList<String>();
+		StringBuilder stream = new StringBuilder();
+		for (int s = 0; s < 2000; s++) {
+			StringBuilder snapshot = new StringBuilder();
+			boolean array = random.nextBoolean();
+			int vehicles = array ? random.nextInt(5) : 1;
+			snapshot.append(array ? "[" : "");
+			for (int v = 0; v < vehicles; v++) {
+				String entry = new SnapshotEntry(random).json;
+				entry = entry.substring(0, entry.length() - 1)
+						+ ",\"destination\":"
+						+ TRICKY_STRINGS[random.nextInt(TRICKY_STRINGS.length)]
+						+ "}";
+				snapshot.append(v > 0 ? "," : "").append(entry);
+			}
+			snapshot.append(array ? "]" : "");
+			snapshots.add(snapshot.toString());
+			stream.append(snapshot)
+					.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+		}
+		byte[] bytes = stream.toString().getBytes(StandardCharsets.US_ASCII);
+
+		int[] maxChunks = { 1, 7, 100, 5000, bytes.length };
+		int[] maxSnapshotsBytes = { SnapshotFramer.MAX_SNAPSHOT_BYTES, 300 };
+		for (int maxSnapshotBytes : maxSnapshotsBytes) {
+			ArrayList<String> kept = new ArrayList<String>();
+			for (String snapshot : snapshots) {
+				if (snapshot.length() <= maxSnapshotBytes) {
+					kept.add(snapshot);
+				}
+			}
+			for (int maxChunk : maxChunks) {
+				checkSnapshotFramer(bytes, maxChunk, maxSnapshotBytes, kept,
+						snapshots.size() - kept.size(), random);
+			}
+		}
+		System.out.println("SnapshotFramer agrees on " + snapshots.size()
+				+ " snapshots for each chunk and maximum snapshot size");
+	}
+
+	private static void checkSnapshotFramer(byte[] bytes, int maxChunk,
+			int maxSnapshotBytes, ArrayList<String> snapshots, int dropped,
+			Random random) {
+		SnapshotFramer framer = new SnapshotFramer(maxSnapshotBytes);
+		int found = 0;
+		int foundDropped = 0;
+		for (int from = 0; from < bytes.length;) {
+			int length = Math.min(bytes.length - from,
+					1 + random.nextInt(maxChunk));
+			framer.append(bytes, from, length);
+			from += length;
+			while (framer.next()) {
+				String snapshot = new String(framer.bytes(), framer.start(),
+						framer.end() - framer.start(),
+						StandardCharsets.US_ASCII);
+				if (found >= snapshots.size()
+						|| !snapshot.equals(snapshots.get(found))) {
+					throw new RuntimeException("SnapshotFramer returned "
+							+ snapshot + " as snapshot " + found);
+				}
+				found++;
+			}
+			foundDropped += framer.takeDroppedSnapshots();
+		}
+		if (found != snapshots.size() || foundDropped != dropped) {
+			throw new RuntimeException("SnapshotFramer found " + found + " of "
+					+ snapshots.size() + " snapshots and dropped "
+					+ foundDropped + " of " + dropped);
+		}
+	}
+
 	public static void main(String args[]) throws ProjectSpecificException {
 		evaluateRealTime();
 	}
@@ -214,23 +522,7 @@ class ArbitraryCodeExecutor {
 	}
 
 	public static Trip upToStop(int upToNumber, Trip trip, Route route) {
-		for (int p = 0; p < trip.gpsPoints.size(); p++) {
-			if (route.busStops.get(upToNumber).atStop(trip.gpsPoints.get(p))) {
-				ArrayList<GpsPoint> points = new ArrayList<GpsPoint>(
-						trip.gpsPoints.subList(0, p));
-				for (int i = 0; i < Trip.MINIMUM_NUMBER_OF_GPS_POINTS
-						- p; i++) {
-					points.add(0, trip.gpsPoints.get(0));
-				}
-				try {
-					return new Trip(trip.name, points);
-				} catch (ProjectSpecificException exception) {
-					throw new RuntimeException(exception);
-				}
-			}
-		}
-		throw new RuntimeException("No GPS point passes through "
-				+ route.busStops.get(upToNumber).name + " for " + trip.name);
+		return PredictionEvaluator.upToStop(upToNumber, trip, route);
 	}
 
 	/* Computes various statistics for the arrival time to last stop */
@@ -266,7 +558,7 @@ class ArbitraryCodeExecutor {
 			Utils.appendLineToFile(evaluationFile,
 					historicalTrip.name + " started at "
 							+ Utils.convertTimestampToDate(
-									shortTrips.get(t).lastPoint().timestamp)
+									shortTrips.get(t).lastTimestamp())
 					+ ", was predicted for "
 					+ Utils.convertTimestampToDate(predictedTimestamp)
 					+ ", actually arrived at "
@@ -276,7 +568,7 @@ class ArbitraryCodeExecutor {
 
 			difference += predictionError;
 			delaysSum += actualTimestamp
-					- shortTrips.get(t).lastPoint().timestamp;
+					- shortTrips.get(t).lastTimestamp();
 			trips.add(historicalTrip);
 		}
 
@@ -287,7 +579,8 @@ class ArbitraryCodeExecutor {
 	}
 
 	public static boolean inCambridge(Trip path) {
-		for (GpsPoint point : path.gpsPoints) {
+		for (int p = 0; p < path.size(); p++) {
+			GpsPoint point = path.point(p);
 			if (point.latitude >= 52.19 && point.latitude <= 52.22
 					&& point.longitude >= 0.08 && point.longitude <= 0.12) {
 				return true;
@@ -302,7 +595,8 @@ class ArbitraryCodeExecutor {
 	}
 
 	static boolean stoppedAtMadingleyPark(Trip trip) {
-		for (GpsPoint point : trip.gpsPoints) {
+		for (int p = 0; p < trip.size(); p++) {
+			GpsPoint point = trip.point(p);
 			if (atMadingleyPark(point)) {
 				return true;
 			}
@@ -316,7 +610,8 @@ class ArbitraryCodeExecutor {
 	}
 
 	static long madingleyStopTimestamp(Trip trip) {
-		for (GpsPoint point : trip.gpsPoints) {
+		for (int p = 0; p < trip.size(); p++) {
+			GpsPoint point = trip.point(p);
 			if (atMadingleyPark(point)) {
 				return point.timestamp;
 			}
@@ -325,7 +620,8 @@ class ArbitraryCodeExecutor {
 	}
 
 	static long victoriaStopTimestamp(Trip trip) {
-		for (GpsPoint point : trip.gpsPoints) {
+		for (int p = 0; p < trip.size(); p++) {
+			GpsPoint point = trip.point(p);
 			if (atVictoria(point)) {
 				return point.timestamp;
 			}
@@ -359,8 +655,8 @@ class ArbitraryCodeExecutor {
 		for (File tripFile : tripFiles) {
 			Trip trip = Trip.readFromFile(tripFile);
 			System.out.println("Processing trip " + trip.name);
-			for (GpsPoint point : trip.gpsPoints) {
-				if (passedThrough.apply(point)) {
+			for (int p = 0; p < trip.size(); p++) {
+				if (passedThrough.apply(trip.point(p))) {
 					System.out
 							.println("Trip " + trip.name + " passed through!");
 					trip.writeToFolder(outputFolder);
@@ -386,25 +682,25 @@ class ArbitraryCodeExecutor {
 	static int indexToDelimit(Trip trip) {
 		int index = 0;
 		int delimitingIndex = 0;
-		while (index < trip.gpsPoints.size()) {
-			if (delimitingPoint(trip.gpsPoints.get(index))) {
+		while (index < trip.size()) {
+			if (delimitingPoint(trip.point(index))) {
 				delimitingIndex = index;
-				long delimitArrivalTime = trip.gpsPoints.get(index).timestamp;
-				while (index < trip.gpsPoints.size()
-						&& !atMadingleyPark(trip.gpsPoints.get(index))
-						&& (trip.gpsPoints.get(index).timestamp
+				long delimitArrivalTime = trip.timestamp(index);
+				while (index < trip.size()
+						&& !atMadingleyPark(trip.point(index))
+						&& (trip.timestamp(index)
 								- delimitArrivalTime) < 1500) {
 
-					if (trip.gpsPoints.get(index).timestamp
+					if (trip.timestamp(index)
 							- delimitArrivalTime > 200
-							&& delimitingPoint(trip.gpsPoints.get(index))) {
+							&& delimitingPoint(trip.point(index))) {
 						break;
 					}
 					index++;
 				}
-				if (index < trip.gpsPoints.size()
-						&& atMadingleyPark(trip.gpsPoints.get(index))) {
-					long timeDifference = (trip.gpsPoints.get(index).timestamp
+				if (index < trip.size()
+						&& atMadingleyPark(trip.point(index))) {
+					long timeDifference = (trip.timestamp(index)
 							- delimitArrivalTime);
 					if (timeDifference < 1200) {
 						return delimitingIndex + 3;
@@ -426,13 +722,10 @@ class ArbitraryCodeExecutor {
 			int indexToDelimit = indexToDelimit(trip);
 			if (indexToDelimit >= 7) {
 				int minIndex = Math.max(0, indexToDelimit - 10);
-				Trip recentPart = new Trip(trip.name, new ArrayList<GpsPoint>(
-						trip.gpsPoints.subList(minIndex, indexToDelimit)));
+				Trip recentPart = trip.subTrip(minIndex, indexToDelimit);
 				recentPart.writeToFolder(recentPartsFolder);
 
-				Trip futurePart = new Trip(trip.name,
-						new ArrayList<GpsPoint>(trip.gpsPoints.subList(
-								indexToDelimit, trip.gpsPoints.size())));
+				Trip futurePart = trip.subTrip(indexToDelimit, trip.size());
 				futurePart.writeToFolder(futurePartsFolder);
 			} else {
 				System.out.println(
@@ -1,7 +1,6 @@
 package bus;
 
 import java.util.ArrayList;
-import java.util.Collections;
 
 public class ArrivalTimePredictor {
 	private static final long MAX_DURATION_DIFFERENCE = 40L;
@@ -10,9 +9,114 @@ public class ArrivalTimePredictor {
 	/* Main method which predicts arrival time to the busStop */
 	static Prediction makePrediction(BusStop busStop, Trip tripToPredict,
 			ArrayList<Trip> historicalTrips) throws ProjectSpecificException {
-		ArrayList<Prediction> predictions = generatePredictions(tripToPredict,
-				historicalTrips, busStop);
-		return medianPrediction(predictions);
+		PredictionAggregator aggregator = PredictionAggregator.start();
+		for (int t = 0; t < historicalTrips.size(); t++) {
+			aggregator.add(generateFuturePrediction(tripToPredict,
+					historicalTrips.get(t), busStop), t);
+		}
+		aggregator.aggregate();
+		Trip medianHistoricalTrip = historicalTrips.get(aggregator.medianId());
+		return aggregatedPrediction(tripToPredict, medianHistoricalTrip,
+				aggregator,
+				equallyCongested(tripToPredict, medianHistoricalTrip));
+	}
+
+	/*
+	 * Same as above, for the stopIndex-th stop of the history's route. Arrival
+	 * times are looked up in the history instead of scanning the trips, and
+	 * only trips that ran at a similar time (RouteHistory.candidates) are used.
+	 */
+	static Prediction makePrediction(RouteHistory history, int stopIndex,
+			Trip tripToPredict) throws ProjectSpecificException {
+		return makePrediction(history, stopIndex, tripToPredict, -1);
+	}
+
+	/* Same as above, ignoring the excludedTrip-th historical trip */
+	static Prediction makePrediction(RouteHistory history, int stopIndex,
+			Trip tripToPredict, int excludedTrip)
+			throws ProjectSpecificException {
+		return makePredictions(history, stopIndex, stopIndex, tripToPredict,
+				excludedTrip)[0];
+	}
+
+	/*
+	 * Predicts arrival times to the stops fromStop, fromStop + 1, ..., toStop
+	 * of the history's route, the s-th stop's prediction being at index
+	 * s - fromStop. Closest points of the historical trips are found once for
+	 * all the stops, and each historical trip is checked for congestion at
+	 * most once.
+	 */
+	static Prediction[] makePredictions(RouteHistory history, int fromStop,
+			int toStop, Trip tripToPredict) throws ProjectSpecificException {
+		return makePredictions(history, fromStop, toStop, tripToPredict, -1);
+	}
+
+	/* Same as above, ignoring the excludedTrip-th historical trip */
+	static Prediction[] makePredictions(RouteHistory history, int fromStop,
+			int toStop, Trip tripToPredict, int excludedTrip)
+			throws ProjectSpecificException {
+		int[] candidates = history.candidates(tripToPredict.lastTimestamp());
+		int[] closestPointIndices = new int[candidates.length];
+		for (int c = 0; c < candidates.length; c++) {
+			if (candidates[c] != excludedTrip) {
+				closestPointIndices[c] = closestPointIndex(
+						tripToPredict.lastPoint(),
+						history.trips.get(candidates[c]));
+			}
+		}
+		return makePredictions(history, fromStop, toStop, tripToPredict,
+				candidates, closestPointIndices, excludedTrip);
+	}
+
+	/*
+	 * Same as above, where candidates are history.candidates(...) and
+	 * closestPointIndices[c] is the index of candidates[c]-th trip's point
+	 * closest to the trip's last point.
+	 */
+	static Prediction[] makePredictions(RouteHistory history, int fromStop,
+			int toStop, Trip tripToPredict, int[] candidates,
+			int[] closestPointIndices, int excludedTrip)
+			throws ProjectSpecificException {
+		return makePredictions(history, fromStop, toStop, tripToPredict,
+				candidates, closestPointIndices,
+				new byte[candidates.length], excludedTrip);
+	}
+
+	/*
+	 * Same as above, where congestion[c] tells whether candidates[c]-th trip
+	 * is equally congested as the trip: 0 - not checked yet, 1 - differently,
+	 * 2 - equally congested. Unchecked trips that are needed get checked and
+	 * the results are stored in congestion.
+	 */
+	static Prediction[] makePredictions(RouteHistory history, int fromStop,
+			int toStop, Trip tripToPredict, int[] candidates,
+			int[] closestPointIndices, byte[] congestion, int excludedTrip)
+			throws ProjectSpecificException {
+		Prediction[] predictions = new Prediction[Math.max(0,
+				toStop - fromStop + 1)];
+		for (int stop = fromStop; stop <= toStop; stop++) {
+			PredictionAggregator aggregator = PredictionAggregator.start();
+			for (int c = 0; c < candidates.length; c++) {
+				if (candidates[c] != excludedTrip) {
+					aggregator.add(tripToPredict.lastTimestamp() + history
+							.timeToStop(candidates[c], closestPointIndices[c],
+									stop),
+							c);
+				}
+			}
+			aggregator.aggregate();
+
+			int median = aggregator.medianId();
+			Trip medianHistoricalTrip = history.trips.get(candidates[median]);
+			if (congestion[median] == 0) {
+				congestion[median] = (byte) (equallyCongested(tripToPredict,
+						medianHistoricalTrip, closestPointIndices[median]) ? 2
+								: 1);
+			}
+			predictions[stop - fromStop] = aggregatedPrediction(tripToPredict,
+					medianHistoricalTrip, aggregator, congestion[median] == 2);
+		}
+		return predictions;
 	}
 
 	/*
@@ -20,67 +124,53 @@ public class ArrivalTimePredictor {
 	 * travelled in roughly equal amount of time.
 	 */
 	public static boolean equallyCongested(Trip trip, Trip historicalTrip) {
-		try {
-			int closestPointIndex = closestPointIndex(trip.lastPoint(),
-					historicalTrip);
-			long historicalTimestamp = historicalTrip.gpsPoints
-					.get(closestPointIndex).timestamp;
-			ArrayList<GpsPoint> subTrip = historicalTrip
-					.timeInterval(
-							historicalTimestamp - trip.duration()
-									- MAX_DURATION_DIFFERENCE,
-							historicalTimestamp);
-			if (subTrip.size() <= 1) {
-				return false;
-			}
-			long historicalDuration = subTrip.get(subTrip.size() - 1).timestamp
-					- subTrip.get(0).timestamp;
+		return equallyCongested(trip, historicalTrip,
+				closestPointIndex(trip.lastPoint(), historicalTrip));
+	}
 
-			if (Math.abs(trip.duration()
-					- historicalDuration) > MAX_DURATION_DIFFERENCE) {
-				return false;
-			}
+	/* Same as above, where closestPointIndex is already known */
+	private static boolean equallyCongested(Trip trip, Trip historicalTrip,
+			int closestPointIndex) {
+		long historicalTimestamp = historicalTrip.timestamp(closestPointIndex);
+		Trip subTrip = historicalTrip.timeInterval(
+				historicalTimestamp - trip.duration() - MAX_DURATION_DIFFERENCE,
+				historicalTimestamp);
+		if (subTrip.size() <= 1) {
+			return false;
+		}
+		long historicalDuration = subTrip.duration();
 
-			return (trip.firstPoint().ratioToSegmentCorners(subTrip.get(0),
-					subTrip.get(1)) == 1.0
-					|| subTrip.get(0).ratioToSegmentCorners(trip.firstPoint(),
-							trip.secondPoint()) == 1.0);
-		} catch (ProjectSpecificException exception) {
-			throw new RuntimeException(exception);
+		if (Math.abs(trip.duration()
+				- historicalDuration) > MAX_DURATION_DIFFERENCE) {
+			return false;
 		}
+
+		return (trip.firstPoint().ratioToSegmentCorners(subTrip.firstPoint(),
+				subTrip.secondPoint()) == 1.0
+				|| subTrip.firstPoint().ratioToSegmentCorners(trip.firstPoint(),
+						trip.secondPoint()) == 1.0);
 	}
 
 	private static boolean historicalTripIsRecent(Trip trip,
 			Trip historicalTrip) {
 		// TODO(ml693): remove modulus when proper testing is done.
-		return Math.abs(trip.lastPoint().timestamp
-				- historicalTrip.lastPoint().timestamp) < RECENT_INTERVAL;
+		return Math.abs(trip.lastTimestamp()
+				- historicalTrip.lastTimestamp()) < RECENT_INTERVAL;
 	}
 
 	/* Finds point in trip that was closest to the mostRecentPoint */
 	static int closestPointIndex(GpsPoint mostRecentPoint, Trip trip) {
-		int closestPointIndex = -1;
-		double closestPointDistance = Double.MAX_VALUE;
-		for (int i = 0; i < trip.gpsPoints.size(); i++) {
-			double newDistance = Utils.distance(mostRecentPoint,
-					trip.gpsPoints.get(i));
-			if (newDistance < closestPointDistance) {
-				closestPointIndex = i;
-				closestPointDistance = newDistance;
-			}
-		}
-		return closestPointIndex;
+		return trip.closestPointIndex(mostRecentPoint);
 	}
 
 	static long generateFuturePrediction(Trip recentTrip, Trip trip,
 			BusStop busStop) {
 		int closestPointIndex = closestPointIndex(recentTrip.lastPoint(), trip);
 
-		for (int p = 0; p < trip.gpsPoints.size(); p++) {
-			if (busStop.atStop(trip.gpsPoints.get(p))) {
-				return recentTrip.lastPoint().timestamp
-						+ (trip.gpsPoints.get(p).timestamp - trip.gpsPoints
-								.get(closestPointIndex).timestamp);
+		for (int p = 0; p < trip.size(); p++) {
+			if (busStop.atStop(trip, p)) {
+				return recentTrip.lastTimestamp() + (trip.timestamp(p)
+						- trip.timestamp(closestPointIndex));
 			}
 		}
 
@@ -89,74 +179,24 @@ public class ArrivalTimePredictor {
 	}
 
 	/*
-	 * Finds all equally congested trips with the recentTrip, and for each
-	 * equally congested trip t, uses its interval as prediction (except for
-	 * the case where t has no further GPS points to be used for prediction).
+	 * Every historical trip gives a candidate prediction (the time it took
+	 * from the point closest to the trip's last point until the stop), and
+	 * the candidates are aggregated by PredictionAggregator. The prediction
+	 * describes the historical trip giving the median candidate.
 	 */
-	private static ArrayList<Prediction> generatePredictions(Trip trip,
-			ArrayList<Trip> historicalTrips, BusStop busStop) {
-		ArrayList<Prediction> predictions = new ArrayList<Prediction>();
-
-		for (Trip historicalTrip : historicalTrips) {
-			/*
-			 * TODO(ml693): unfortunatelly at real time no historicalTrip will
-			 * be considered as recent. Find a way to fix this.
-			 */
-			boolean recent = historicalTripIsRecent(trip, historicalTrip);
-			boolean equallyCongested = equallyCongested(trip, historicalTrip);
-			long predictedTimestamp = generateFuturePrediction(trip,
-					historicalTrip, busStop);
-			Prediction prediction = new Prediction(predictedTimestamp);
-			prediction.name = historicalTrip.name;
-			prediction.equallyCongested = equallyCongested;
-			prediction.recent = recent;
-			predictions.add(prediction);
-		}
-
-		return predictions;
-	}
-
-	private static Prediction median(ArrayList<Prediction> predictions) {
-		Collections.sort(predictions, (p1,
-				p2) -> (int) (p1.predictedTimestamp - p2.predictedTimestamp));
-		return predictions.get(predictions.size() / 2);
-	}
-
-	private static Prediction medianPrediction(
-			ArrayList<Prediction> predictions) throws ProjectSpecificException {
-		ArrayList<Prediction> oldDifferentlyCongested = new ArrayList<Prediction>();
-		ArrayList<Prediction> oldEquallyCongested = new ArrayList<Prediction>();
-		ArrayList<Prediction> newDifferentlyCongested = new ArrayList<Prediction>();
-		ArrayList<Prediction> newEquallyCongested = new ArrayList<Prediction>();
-		
-		if (predictions.size() == predictions.size()) {
-			return median(predictions);
-		}
-
-		for (Prediction prediction : predictions) {
-			if (!prediction.recent && !prediction.equallyCongested) {
-				oldDifferentlyCongested.add(prediction);
-			}
-			if (!prediction.recent && prediction.equallyCongested) {
-				oldEquallyCongested.add(prediction);
-			}
-			if (prediction.recent && !prediction.equallyCongested) {
-				newDifferentlyCongested.add(prediction);
-			}
-			if (prediction.recent && prediction.equallyCongested) {
-				newEquallyCongested.add(prediction);
-			}
-		}
-
-		if (newEquallyCongested.size() > 0) {
-			return median(newEquallyCongested);
-		}
-		if (oldEquallyCongested.size() > 0) {
-			return median(oldEquallyCongested);
-		}
-		if (newDifferentlyCongested.size() > 0) {
-			return median(newDifferentlyCongested);
-		}
-		return median(oldDifferentlyCongested);
+	private static Prediction aggregatedPrediction(Trip trip,
+			Trip medianHistoricalTrip, PredictionAggregator aggregator,
+			boolean equallyCongested) {
+		/*
+		 * TODO(ml693): unfortunatelly at real time no historicalTrip will be
+		 * considered as recent. Find a way to fix this.
+		 */
+		Prediction prediction = new Prediction(aggregator.value());
+		prediction.lowerTimestamp = aggregator.lowerTimestamp();
+		prediction.upperTimestamp = aggregator.upperTimestamp();
+		prediction.name = medianHistoricalTrip.name;
+		prediction.equallyCongested = equallyCongested;
+		prediction.recent = historicalTripIsRecent(trip, medianHistoricalTrip);
+		return prediction;
 	}
 }
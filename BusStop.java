@@ -7,11 +7,14 @@ public class BusStop {
 	final String name;
 	final double latitude;
 	final double longitude;
+	/* Stop's location, whose unit vector atStop computes only once */
+	final GpsPoint location;
 
 	BusStop(String name, double latitude, double longitude) {
 		this.name = name;
 		this.latitude = latitude;
 		this.longitude = longitude;
+		this.location = new GpsPoint(0L, latitude, longitude);
 	}
 
 	String serializeToString() {
@@ -28,7 +31,11 @@ public class BusStop {
 	}
 
 	boolean atStop(GpsPoint point) {
-		GpsPoint stopPoint = new GpsPoint(0L, this.latitude, this.longitude);
-		return (Utils.samePlace(point, stopPoint));
+		return Utils.samePlace(point, location);
+	}
+
+	/* Whether trip's index-th GPS point is at this stop */
+	boolean atStop(Trip trip, int index) {
+		return trip.samePlace(index, location);
 	}
 }
@@ -1,22 +1,16 @@
 package bus;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class BusTravelHistoryExtractor {
 	/*
 	 * Internal map to store data. At the end this map will get printed as a
 	 * list of files to the output directory.
 	 */
-	static HashMap<String, ArrayList<GpsPoint>> allHistories = new HashMap<String, ArrayList<GpsPoint>>();
+	static HashMap<String, VehicleHistory> allHistories = new HashMap<String, VehicleHistory>();
 
 	/*
 	 * This program takes JSON files as an input, extracts info about buses
@@ -36,8 +30,6 @@ public class BusTravelHistoryExtractor {
 	 * time,latitude,longitude
 	 * 2016-10-11 16:06:28,51.8944,0.4532
 	 * ... // file will contain more entries generated from other files
-	 * 
-	 * TODO(ml693): eliminate the constrain for the input to be in one line.
 	 */
 	public static void main(String args[]) throws Exception {
 		Utils.checkCommandLineArguments(args, "folder", "folder");
@@ -69,7 +61,7 @@ public class BusTravelHistoryExtractor {
 		/* At the end we output the processed data into args[1] folder */
 		for (String key : allHistories.keySet()) {
 			try {
-				new Trip(key, allHistories.get(key))
+				allHistories.get(key).recentTrip(VehicleHistory.CAPACITY)
 						.writeToFolder(outputFolder);
 			} catch (ProjectSpecificException exception) {
 				System.out.println(key + " has too little GPS entries!");
@@ -78,60 +70,56 @@ public class BusTravelHistoryExtractor {
 		System.out.println("Done with " + jsonHistoryFolder.getAbsolutePath());
 	}
 
-	static int extractVehicleId(String snapshot) {
-		Pattern pattern = Pattern.compile("vehicle_id" + "\":\"" + "[0-9]+");
-		Matcher matcher = pattern.matcher(snapshot);
-		matcher.find();
-		return Integer.parseInt(matcher.group().substring(13));
+	static void updateBusesTravelHistoryWithFile(File file) {
+		updateBusesTravelHistory(day(file), SnapshotParser.ofFile(file));
 	}
 
-	static void updateBusesTravelHistoryWithFile(File file) {
-		try {
-			/* Will match a new bus entry in the file */
-			String openParenthesesRegex = "\\{";
-			String untilClosedParenthesesRegex = "[^}]*";
-			Pattern pattern = Pattern.compile(
-					openParenthesesRegex + untilClosedParenthesesRegex);
+	/* Same as above, for the file's content that was already read */
+	static void updateBusesTravelHistoryWithSnapshot(File file,
+			byte[] snapshot) {
+		updateBusesTravelHistory(day(file),
+				new SnapshotParser(snapshot, 0, snapshot.length));
+	}
+
+	/* Same as above, for a snapshot bytes[from, to) not read from a file */
+	static void updateBusesTravelHistoryWithSnapshot(byte[] bytes, int from,
+			int to) {
+		updateBusesTravelHistory(today(),
+				new SnapshotParser(bytes, from, to));
+	}
 
-			BufferedReader jsonInput = new BufferedReader(new FileReader(file));
-			String line = jsonInput.readLine();
-			Matcher matcher = pattern.matcher(line);
+	/* Snapshots are stored in folders named by the day of month */
+	private static String day(File file) {
+		String day = file.getParentFile().getName();
+		if (!day.matches("[0-9]*")) {
+			return today();
+		}
+		return day;
+	}
 
-			/* For each bus entry */
-			while (matcher.find()) {
-				/* We extract bus info */
-				String busSnapshotTextEntry = matcher.group();
+	private static String today() {
+		return Integer.toString(LocalDateTime.now().getDayOfMonth());
+	}
 
-				String day = file.getParentFile().getName();
-				if (!day.matches("[0-9]*")) {
-					day = Integer.toString(LocalDateTime.now().getDayOfMonth());
-				}
-				String key = "day" + day + "_bus"
-						+ extractVehicleId(busSnapshotTextEntry);
+	private static void updateBusesTravelHistory(String day,
+			SnapshotParser parser) {
+		String keyPrefix = "day" + day + "_bus";
 
-				GpsPoint gpsPoint = new GpsPoint(busSnapshotTextEntry);
-				/* And store info to the map */
-				if (gpsPoint.latitude != 0.0 || gpsPoint.longitude != 0.0) {
-					if (!allHistories.containsKey(key)) {
-						allHistories.put(key, new ArrayList<GpsPoint>());
-						allHistories.get(key).add(gpsPoint);
-					} else {
-						ArrayList<GpsPoint> points = allHistories.get(key);
-						GpsPoint lastPoint = points.get(points.size() - 1);
-						if (!Utils.samePlace(lastPoint, gpsPoint)) {
-							points.add(gpsPoint);
-						}
-						if (points.size() > 2
-								* Trip.MINIMUM_NUMBER_OF_GPS_POINTS) {
-							points.remove(0);
-						}
-					}
-				}
+		/* For each bus entry */
+		while (parser.next()) {
+			/* We extract bus info */
+			if (parser.latitude == 0.0 && parser.longitude == 0.0) {
+				continue;
 			}
+			String key = keyPrefix + parser.vehicleId;
 
-			jsonInput.close();
-		} catch (IOException exception) {
-			throw new RuntimeException(exception);
+			/* And store info to the map */
+			VehicleHistory history = allHistories.get(key);
+			if (history == null) {
+				history = new VehicleHistory(key);
+				allHistories.put(key, history);
+			}
+			history.add(parser.timestamp, parser.latitude, parser.longitude);
 		}
 	}
 }
@@ -2,8 +2,6 @@ package bus;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 class GpsPoint {
 	private static double DISTANCE_TOO_SMALL_TO_CONSIDER = 0.00002f;
@@ -13,43 +11,50 @@ class GpsPoint {
 	final double latitude;
 	final double longitude;
 
+	/*
+	 * The point as a unit vector (x towards longitude 0, z towards the north
+	 * pole), which is all Utils.distance needs. Computed on first use, as
+	 * most points are only written out or compared by their timestamps.
+	 */
+	private double unitX;
+	private double unitY;
+	private double unitZ;
+	/* Set after the vector, so a thread seeing it set sees the vector too */
+	private volatile boolean hasUnitVector;
+
 	public GpsPoint(long timestamp, double latitude, double longitude) {
 		this.timestamp = timestamp;
 		this.latitude = latitude;
 		this.longitude = longitude;
 	}
 
-	/*
-	 * Example jsonTextEntry: '{vehicle_id="4","timestamp":1476227188,
-	 * "latitude":51.89,"longitude":0.453, "trip_id":EBS_22}'
-	 */
-	public GpsPoint(String jsonTextEntry) {
-		timestamp = extractTimestamp(jsonTextEntry);
-		latitude = extractCoordinate("latitude", jsonTextEntry);
-		longitude = extractCoordinate("longitude", jsonTextEntry);
+	double unitX() {
+		computeUnitVector();
+		return unitX;
 	}
 
-	/* Helper function to construct GpsPoint from jsonTextEntry */
-	private long extractTimestamp(String jsonTextEntry) {
-		/*
-		 * It's important to include \" character to extract
-		 * "timestamp" but not "received_timestamp".
-		 */
-		String timestampRegex = "\"timestamp\":";
-		String integerRegex = "[0-9]+";
-		Pattern pattern = Pattern.compile(timestampRegex + integerRegex);
-		Matcher matcher = pattern.matcher(jsonTextEntry);
-		matcher.find();
-		return Long.parseLong(matcher.group().substring(12));
+	double unitY() {
+		computeUnitVector();
+		return unitY;
 	}
 
-	/* Helper function to construct GpsPoint from jsonTextEntry */
-	private double extractCoordinate(String coordinate, String jsonTextEntry) {
-		Pattern pattern = Pattern.compile(coordinate + "\":" + "[^,]+");
-		Matcher matcher = pattern.matcher(jsonTextEntry);
-		matcher.find();
-		return Double.parseDouble(
-				matcher.group().substring(coordinate.length() + 2));
+	double unitZ() {
+		computeUnitVector();
+		return unitZ;
+	}
+
+	/* Racing threads compute equal values, so either one can win */
+	private void computeUnitVector() {
+		if (hasUnitVector) {
+			return;
+		}
+		double latitudeRadians = latitude * Utils.SCALE_TO_RADIANS;
+		double longitudeRadians = longitude * Utils.SCALE_TO_RADIANS;
+		double cosLatitude = Math.cos(latitudeRadians);
+		unitX = cosLatitude * Math.cos(longitudeRadians);
+		unitY = cosLatitude * Math.sin(longitudeRadians);
+		unitZ = Math.sin(latitudeRadians);
+		hasUnitVector = true;
 	}
 
 	/* For printing */
@@ -73,13 +78,18 @@ class GpsPoint {
 	 * segment we return 1 instead of a ratio.
 	 */
 	double ratioToSegmentCorners(GpsPoint corner1, GpsPoint corner2) {
-		double distanceToCorners = Utils.distance(this, corner1)
-				+ Utils.distance(this, corner2);
+		return ratioToSegmentCorners(
+				Utils.distance(this, corner1) + Utils.distance(this, corner2),
+				Utils.distance(corner1, corner2));
+	}
+
+	/* Same as above, when the distances are already known */
+	static double ratioToSegmentCorners(double distanceToCorners,
+			double segmentLength) {
 		if (distanceToCorners <= DISTANCE_TOO_SMALL_TO_CONSIDER) {
 			return 1.0;
 		}
-		double ratioError = distanceToCorners
-				/ Utils.distance(corner1, corner2);
+		double ratioError = distanceToCorners / segmentLength;
 		return ratioError < SIGNIFICANT_RATIO_THRESHOLD ? 1 : ratioError;
 	}
-}
\ No newline at end of file
+}
@@ -1,11 +1,20 @@
 package bus;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
@@ -13,8 +22,18 @@ import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 class GpsRealTimeInputWatcher {
 	// These strings are likely to change
@@ -22,24 +41,60 @@ class GpsRealTimeInputWatcher {
 	private static final String LOCK_FILE_PATH = "/media/tfc/ml693/data_monitor_lock_file";
 
 	private final File tripsFolder;
-	private final File routesFolder;
 	/* All predictions are recorded to this file */
 	private final File predictionsFile;
 
 	private final File debugFile;
+	/* Writes to the files above in the background */
+	private final LogWriter logWriter = new LogWriter();
 
-	private final HashMap<String /* vehicleId */, Route> vehicleFollowsRoute = new HashMap<String, Route>();
-	private final HashMap<String /* vehicleId */, Trip /* path */> vehicleFollowsPath = new HashMap<String, Trip>();
-	private final HashMap<String /* vehicleId */, Prediction[]> lastStopPredictions = new HashMap<String, Prediction[]>();
-	private final HashMap<String /* vehicleId */, Prediction> nextStopPrediction = new HashMap<String, Prediction>();
+	private final ConcurrentHashMap<String /* vehicleId */, RouteRegistry.Entry> vehicleFollowsRoute = new ConcurrentHashMap<String, RouteRegistry.Entry>();
+	private final ConcurrentHashMap<String /* vehicleId */, Prediction[]> lastStopPredictions = new ConcurrentHashMap<String, Prediction[]>();
+	private final ConcurrentHashMap<String /* vehicleId */, Prediction> nextStopPrediction = new ConcurrentHashMap<String, Prediction>();
+	private final ConcurrentHashMap<String /* vehicleId */, VehiclePredictionState> predictionStates = new ConcurrentHashMap<String, VehiclePredictionState>();
 
-	private final ArrayList<Trip> paths;
+	/* Routes and their paths, loaded once */
+	private final RouteRegistry routes;
+	/* Which paths new vehicles are tested against first */
+	private final PathRanking pathRanking;
+	private final HistoricalTripCache historicalTripCache;
+
+	/*
+	 * Vehicles of a tick are processed by this many threads, which can be
+	 * changed with -Dbus.workerThreads=... (1 processes them in the watcher's
+	 * thread). With -Dbus.virtualThreads=true each vehicle gets a virtual
+	 * thread instead, if the JVM has them.
+	 */
+	static final int WORKER_THREADS = Integer.getInteger("bus.workerThreads",
+			Runtime.getRuntime().availableProcessors());
+	static final boolean VIRTUAL_THREADS = Boolean
+			.getBoolean("bus.virtualThreads");
+	/*
+	 * Routes with a segment model in the folder given by
+	 * -Dbus.segmentModels=... are predicted by SegmentModelPredictor, the
+	 * others by ArrivalTimePredictor. Not modified after construction.
+	 */
+	static final String SEGMENT_MODELS_FOLDER = System
+			.getProperty("bus.segmentModels");
+	private final HashMap<String /* route name */, SegmentModelPredictor> segmentModels = new HashMap<String, SegmentModelPredictor>();
+
+	/*
+	 * With -Dbus.snapshotSocket=... snapshots are read from a socket instead
+	 * of the incomming folder: "port" or "host:port" for TCP (host defaults
+	 * to localhost), "unix:/path/to/socket" for a Unix domain socket.
+	 */
+	static final String SNAPSHOT_SOCKET = System
+			.getProperty("bus.snapshotSocket");
+
+	/* null if vehicles are processed in the watcher's thread */
+	private final ExecutorService vehicleExecutor = vehicleExecutor();
 
 	/*
 	 * Real time GPS data is transmitted every 30s. This program sleeps, wakes
 	 * up on every new incomming file, processes it, then goes back to sleep.
 	 * The incomming file is JSON, and has the format specified at
-	 * BusTravelHistoryExtractor class.
+	 * BusTravelHistoryExtractor class. Alternatively the same JSON can be
+	 * streamed to a socket (see SNAPSHOT_SOCKET).
 	 * 
 	 * Usage:
 	 * java GpsRealTimeInputWatcher folder_where_gps_file_arrives
@@ -51,22 +106,50 @@ class GpsRealTimeInputWatcher {
 		GpsRealTimeInputWatcher watcher = new GpsRealTimeInputWatcher(
 				new File(args[0]), new File(args[1]), new File(args[2]),
 				args[3]);
-		watcher.waitForNewJsonInput();
+		if (SNAPSHOT_SOCKET != null) {
+			watcher.readSnapshotsFromSocket(SNAPSHOT_SOCKET);
+		} else {
+			watcher.waitForNewJsonInput();
+		}
 	}
 
 	GpsRealTimeInputWatcher(File tripsFolder, File routesFolder,
 			File pathsFolder, String loggingFolderPath) {
 		this.tripsFolder = tripsFolder;
-		this.routesFolder = routesFolder;
 
-		this.paths = Trip.readFromFolder(pathsFolder);
-		Collections.sort(paths, (p1, p2) -> Utils
-				.filesInFolder(tripsFolder.getName() + "/" + p2.name).size()
-				- Utils.filesInFolder(tripsFolder.getName() + "/" + p1.name)
-						.size());
+		this.routes = new RouteRegistry(routesFolder, pathsFolder);
+		this.pathRanking = new PathRanking(routes, tripsFolder,
+				new File(loggingFolderPath + "/historical_trip_hours.csv"));
+		this.historicalTripCache = new HistoricalTripCache(tripsFolder);
+		historicalTripCache.preload(Arrays
+				.stream(pathRanking.routesByHistoricalTrips())
+				.limit(HistoricalTripCache.PRELOADED_ROUTES)
+				.map(entry -> entry.route).collect(Collectors.toList()));
+
+		if (SEGMENT_MODELS_FOLDER != null) {
+			loadSegmentModels(new File(SEGMENT_MODELS_FOLDER));
+		}
 
 		this.predictionsFile = new File(loggingFolderPath + "/predictions.txt");
 		this.debugFile = new File(loggingFolderPath + "/debug.txt");
+		logWriter.rotate(predictionsFile);
+	}
+
+	private void loadSegmentModels(File modelsFolder) {
+		for (int id = 0; id < routes.size(); id++) {
+			Route route = routes.entry(id).route;
+			try {
+				SegmentModelPredictor model = SegmentModelPredictor
+						.forRoute(route, modelsFolder);
+				if (model != null) {
+					segmentModels.put(route.name, model);
+				}
+			} catch (ProjectSpecificException exception) {
+				System.out.println(exception.getMessage());
+			}
+		}
+		System.out.println("Loaded " + segmentModels.size()
+				+ " segment models.");
 	}
 
 	WatchService realTimeJsonFolderWatcher() {
@@ -74,8 +157,10 @@ class GpsRealTimeInputWatcher {
 			FileSystem fileSystem = FileSystems.getDefault();
 			Path directory = Paths.get(INCOMMING_JSON_FOLDER_PATH);
 			WatchService watchService = fileSystem.newWatchService();
+			/* Files still being written are noticed again once modified */
 			WatchEvent.Kind<?>[] events = {
-					StandardWatchEventKinds.ENTRY_CREATE };
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY };
 			directory.register(watchService, events);
 			return watchService;
 		} catch (Exception exception) {
@@ -83,44 +168,33 @@ class GpsRealTimeInputWatcher {
 		}
 	}
 
+	/*
+	 * Wakes up on any change in the incomming folder and processes every new
+	 * complete snapshot in it, in the order of file names (i.e. of their
+	 * timestamps), so snapshots arriving close together are not skipped.
+	 *
+	 * The watch key is reset before the folder is listed, so files arriving
+	 * while the snapshots are processed wake the loop up again.
+	 */
 	private void waitForNewJsonInput() {
 		WatchService watchService = realTimeJsonFolderWatcher();
+		File folder = new File(INCOMMING_JSON_FOLDER_PATH);
 
 		while (true) {
 			try {
-				// When the new file arrives
 				WatchKey watchKey = watchService.take();
+				/* Which files changed does not matter, all are listed */
 				watchKey.pollEvents();
-				/*
-				 * Sleeping because of some bug when locking the files. The
-				 * String from file is null, although the file should not be
-				 * empty. TODO(ml693): solve the bug, then remove the sleep.
-				 */
-				Thread.sleep(100);
-
-				// First lock the real time input directory
-				File lockFile = new File(LOCK_FILE_PATH);
-				FileChannel channel = new RandomAccessFile(lockFile, "rw")
-						.getChannel();
-				FileLock lock = channel.lock();
-
-				// Then process a new file
-				if (watchKey.isValid()) {
-					processNewGpsInput(new File(INCOMMING_JSON_FOLDER_PATH)
-							.listFiles()[0]);
-				}
-
-				// Finally unlock the real time input directory
-				if (lock != null) {
-					lock.release();
-				}
-				channel.close();
 				if (!watchKey.reset()) {
 					throw new ProjectSpecificException(
 							"Something happened with "
 									+ INCOMMING_JSON_FOLDER_PATH
 									+ " being watched");
 				}
+
+				for (Snapshot snapshot : copyNewSnapshots(folder)) {
+					processNewGpsInput(snapshot);
+				}
 			} catch (Exception exception) {
 				exception.printStackTrace();
 				throw new RuntimeException(exception);
@@ -128,83 +202,273 @@ class GpsRealTimeInputWatcher {
 		}
 	}
 
+	/* Content of a snapshot file, copied out while the folder was locked */
+	private static class Snapshot {
+		final File file;
+		final byte[] bytes;
+
+		Snapshot(File file, byte[] bytes) {
+			this.file = file;
+			this.bytes = bytes;
+		}
+	}
+
+	/*
+	 * Snapshot files already processed, with the length and modification time
+	 * they had then, so a file rewritten under the same name is processed
+	 * again.
+	 */
+	private final HashMap<String /* file name */, String /* signature */> processedSnapshots = new HashMap<String, String>();
+
+	/*
+	 * Copies out complete snapshots not processed yet, ordered by file name.
+	 * The folder is locked only while copying, not while predicting. A file
+	 * that is not complete yet is skipped, its ENTRY_MODIFY event brings the
+	 * loop back once more of it has been written.
+	 */
+	private ArrayList<Snapshot> copyNewSnapshots(File folder)
+			throws IOException {
+		ArrayList<Snapshot> snapshots = new ArrayList<Snapshot>();
+		try (FileChannel channel = new RandomAccessFile(LOCK_FILE_PATH, "rw")
+				.getChannel()) {
+			FileLock lock = channel.lock();
+			try {
+				File[] files = folder.listFiles();
+				if (files == null) {
+					return snapshots;
+				}
+				Arrays.sort(files);
+				HashSet<String> fileNames = new HashSet<String>();
+				for (File file : files) {
+					fileNames.add(file.getName());
+					if (!file.isFile()) {
+						continue;
+					}
+					long lastModified = file.lastModified();
+					if ((file.length() + "@" + lastModified)
+							.equals(processedSnapshots.get(file.getName()))) {
+						continue;
+					}
+					byte[] bytes = Files.readAllBytes(file.toPath());
+					if (!snapshotIsComplete(bytes)) {
+						continue;
+					}
+					processedSnapshots.put(file.getName(),
+							bytes.length + "@" + lastModified);
+					snapshots.add(new Snapshot(file, bytes));
+				}
+				processedSnapshots.keySet().retainAll(fileNames);
+			} finally {
+				lock.release();
+			}
+		}
+		return snapshots;
+	}
+
+	/*
+	 * A snapshot is a JSON array or object, so a complete one ends with the
+	 * bracket closing its first one. Empty or partly written files do not.
+	 */
+	static boolean snapshotIsComplete(byte[] bytes) {
+		int first = 0;
+		while (first < bytes.length && Character.isWhitespace(bytes[first])) {
+			first++;
+		}
+		int last = bytes.length - 1;
+		while (last > first && Character.isWhitespace(bytes[last])) {
+			last--;
+		}
+		if (last <= first) {
+			return false;
+		}
+		return (bytes[first] == '[' && bytes[last] == ']')
+				|| (bytes[first] == '{' && bytes[last] == '}');
+	}
+
+	/*
+	 * Accepts one producer at a time and reads snapshots it streams (see
+	 * SnapshotFramer). Each snapshot is processed as soon as it has fully
+	 * arrived, like a snapshot file would be: it is added to the histories,
+	 * then vehicles are processed, so no snapshot of a burst misses the end
+	 * of route, stop and prediction checks. Nothing waits for files or locks.
+	 *
+	 * A broken connection only ends its producer's stream and a malformed
+	 * snapshot is skipped, either way the service goes on. Errors of
+	 * processing the vehicles stop it.
+	 */
+	private void readSnapshotsFromSocket(String address) {
+		ServerSocketChannel server = openSnapshotSocket(address);
+		System.out.println("Waiting for snapshots at " + address);
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+		while (true) {
+			try (SocketChannel producer = acceptProducer(server)) {
+				System.out.println("Snapshot producer connected");
+				readSnapshotsFromProducer(producer, buffer);
+				System.out.println("Snapshot producer disconnected");
+			} catch (IOException exception) {
+				System.out.println(
+						"Snapshot producer failed: " + exception.getMessage());
+			} catch (ProjectSpecificException exception) {
+				exception.printStackTrace();
+				throw new RuntimeException(exception);
+			}
+		}
+	}
+
+	private static SocketChannel acceptProducer(ServerSocketChannel server) {
+		try {
+			return server.accept();
+		} catch (IOException exception) {
+			/* The server socket itself is broken, nothing more will arrive */
+			throw new RuntimeException(exception);
+		}
+	}
+
+	private void readSnapshotsFromProducer(SocketChannel producer,
+			ByteBuffer buffer) throws IOException, ProjectSpecificException {
+		SnapshotFramer framer = new SnapshotFramer();
+		buffer.clear();
+		while (producer.read(buffer) >= 0) {
+			framer.append(buffer.array(), 0, buffer.position());
+			buffer.clear();
+			while (framer.next()) {
+				try {
+					BusTravelHistoryExtractor
+							.updateBusesTravelHistoryWithSnapshot(
+									framer.bytes(), framer.start(),
+									framer.end());
+				} catch (RuntimeException exception) {
+					System.out.println("Skipping a malformed snapshot: "
+							+ exception);
+					continue;
+				}
+				System.out.println("Dealing with a snapshot from the socket");
+				processVehicles();
+			}
+			int dropped = framer.takeDroppedSnapshots();
+			if (dropped > 0) {
+				System.out.println("Dropped " + dropped
+						+ " snapshots longer than "
+						+ SnapshotFramer.MAX_SNAPSHOT_BYTES + " bytes");
+			}
+		}
+	}
+
+	static ServerSocketChannel openSnapshotSocket(String address) {
+		try {
+			if (address.startsWith("unix:")) {
+				Path path = Paths.get(address.substring("unix:".length()));
+				/* A socket file left by a previous run would fail bind */
+				Files.deleteIfExists(path);
+				/* Looked up reflectively, as they only exist since Java 16 */
+				SocketAddress socketAddress = (SocketAddress) Class
+						.forName("java.net.UnixDomainSocketAddress")
+						.getMethod("of", Path.class).invoke(null, path);
+				ServerSocketChannel server = (ServerSocketChannel) ServerSocketChannel.class
+						.getMethod("open", ProtocolFamily.class)
+						.invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+				return server.bind(socketAddress);
+			}
+			int colon = address.lastIndexOf(':');
+			String host = colon < 0 ? "localhost"
+					: address.substring(0, colon);
+			int port = Integer.parseInt(address.substring(colon + 1));
+			return ServerSocketChannel.open()
+					.bind(new InetSocketAddress(host, port));
+		} catch (ReflectiveOperationException
+				| IllegalArgumentException exception) {
+			throw new RuntimeException(
+					"Can not listen for snapshots at " + address, exception);
+		} catch (IOException exception) {
+			throw new RuntimeException(exception);
+		}
+	}
+
+	/* View of the vehicle's recent points, valid until its next point */
 	Trip getTrip(String vehicleId, int numberOfPoints) {
-		ArrayList<GpsPoint> points = BusTravelHistoryExtractor.allHistories
+		VehicleHistory history = BusTravelHistoryExtractor.allHistories
 				.get(vehicleId);
-		if (points.size() < Trip.MINIMUM_NUMBER_OF_GPS_POINTS) {
+		if (history.size() < Trip.MINIMUM_NUMBER_OF_GPS_POINTS) {
 			return null;
 		}
 
 		try {
-			return new Trip(vehicleId,
-					new ArrayList<GpsPoint>(points.subList(
-							Math.max(0, points.size() - numberOfPoints),
-							points.size())));
+			return history.recentTrip(numberOfPoints);
 		} catch (ProjectSpecificException exception) {
 			throw new RuntimeException(exception);
 		}
 	}
 
-	private int nextStopIndex(Trip recentTrip) {
-		Trip path = vehicleFollowsPath.get(recentTrip.name);
-		Route route = vehicleFollowsRoute.get(recentTrip.name);
+	private int nextStopIndex(Trip recentTrip, RouteRegistry.Entry followed) {
+		Trip path = followed.path;
+		Route route = followed.route;
 
 		int closestPointIndex = ArrivalTimePredictor
 				.closestPointIndex(recentTrip.lastPoint(), path);
-		for (int p = closestPointIndex + 1; p < path.gpsPoints.size(); p++) {
-			for (int stopIndex = 1; stopIndex < route.busStops
-					.size(); stopIndex++) {
-				BusStop busStop = route.busStops.get(stopIndex);
-				if (busStop.atStop(path.gpsPoints.get(p))
-						&& !busStop.atStop(recentTrip.lastPoint())) {
-					return stopIndex;
+		GpsPoint lastPoint = recentTrip.lastPoint();
+		StopIndex stopIndex = route.stopIndex();
+		for (int p = closestPointIndex + 1; p < path.size(); p++) {
+			int stop = stopIndex.nextStopAt(path, p, 1);
+			while (stop >= 0) {
+				if (!route.busStops.get(stop).atStop(lastPoint)) {
+					return stop;
 				}
+				stop = stopIndex.nextStopAt(path, p, stop + 1);
 			}
 		}
 
 		return route.busStops.size();
 	}
 
-	private static final int MAX_NUMBER_OF_SEARCHES_IN_ONE_ITERATION = 100;
-	int searchesPerformed = 0;
-
-	Route routeFollowedByTrip(Trip trip) {
-		if (!vehicleFollowsRoute.containsKey(trip.name)
-				&& searchesPerformed < MAX_NUMBER_OF_SEARCHES_IN_ONE_ITERATION
-				&& Utils.randomBit()) {
-			searchesPerformed++;
-			for (Trip path : paths) {
-				if (PathDetector.tripFollowsPath(trip, path)) {
-					Route route = new Route(
-							new File(routesFolder.getName() + "/" + path.name));
-					if (!route.lastStop().atStop(trip.lastPoint())) {
-						vehicleFollowsRoute.put(trip.name, route);
-						vehicleFollowsPath.put(trip.name, path);
-						break;
-					}
-				}
+	/*
+	 * Finds routes for all trips whose vehicles do not follow a route yet.
+	 * Vehicles are matched in parallel, and for each vehicle the paths are
+	 * tested in parallel too, the likeliest ones first (see PathRanking).
+	 * findFirst on the ordered stream of paths still picks the first matching
+	 * path in that order, and stops the tests of the paths after it once that
+	 * one matches.
+	 */
+	private void matchNewVehicles(ArrayList<Trip> trips) {
+		List<Trip> newTrips = trips.stream()
+				.filter(trip -> !vehicleFollowsRoute.containsKey(trip.name))
+				.collect(Collectors.toList());
+		List<RouteRegistry.Entry> matches = newTrips.parallelStream()
+				.map(trip -> {
+					RouteRegistry.Entry[] routesToTest = pathRanking
+							.routesToTest(trip.lastTimestamp());
+					return IntStream.range(0, routesToTest.length).parallel()
+							.mapToObj(r -> routesToTest[r])
+							.filter(route -> canFollow(trip, route))
+							.findFirst().orElse(null);
+				}).collect(Collectors.toList());
+
+		for (int t = 0; t < newTrips.size(); t++) {
+			RouteRegistry.Entry match = matches.get(t);
+			if (match != null) {
+				vehicleFollowsRoute.put(newTrips.get(t).name, match);
+				pathRanking.recordMatch(match,
+						newTrips.get(t).lastTimestamp());
 			}
 		}
+	}
 
-		return vehicleFollowsRoute.get(trip.name);
+	/* Whether the trip follows the route's path and has not finished it */
+	private static boolean canFollow(Trip trip, RouteRegistry.Entry route) {
+		return PathDetector.tripFollowsPath(trip, route.path)
+				&& !route.route.lastStop().atStop(trip.lastPoint());
 	}
 
 	private void removeVehicle(String vehicleId) {
 		vehicleFollowsRoute.remove(vehicleId);
-		vehicleFollowsPath.remove(vehicleId);
 		lastStopPredictions.remove(vehicleId);
 		nextStopPrediction.remove(vehicleId);
+		predictionStates.remove(vehicleId);
 	}
 
-	private boolean tripDeviatedFromRoute(Trip trip, Route route) {
-		for (Trip path : paths) {
-			if (path.name.equals(route.name)) {
-				return !PathDetector.tripFollowsPath(trip, path);
-			}
-		}
-
-		throw new RuntimeException(
-				"I do not have " + route.name + " in my path set");
+	private boolean tripDeviatedFromRoute(Trip trip,
+			RouteRegistry.Entry followed) {
+		return !PathDetector.tripFollowsPath(trip, followed.path);
 	}
 
 	private boolean endOfRouteReached(Trip trip, Route route) {
@@ -216,21 +480,24 @@ class GpsRealTimeInputWatcher {
 		if (predictions != null) {
 			for (Prediction prediction : predictions) {
 				if (prediction != null) {
-					prediction.appendToFile(predictionsFile,
-							trip.lastPoint().timestamp);
-					if (Math.abs(trip.lastPoint().timestamp
+					logWriter.appendLine(predictionsFile,
+							prediction.serializeToString(trip.lastTimestamp()));
+					if (Math.abs(trip.lastTimestamp()
 							- prediction.predictedTimestamp) > 500) {
 						System.out.println(prediction.name
 								+ " mispredicted for " + trip.name);
-						Utils.appendLineToFile(debugFile,
+						logWriter.appendLine(debugFile,
 								trip.name + " following a route "
 										+ prediction.route.name
 										+ " was equallyCongested="
 										+ prediction.equallyCongested
 										+ " and mispredicted because of the historical trip "
 										+ prediction.name);
-						getTrip(trip.name, 16).writeToFolder(
-								new File("logging/mispredicted"));
+						/* Later points overwrite the view's, hence the copy */
+						Trip recentTrip = getTrip(trip.name, 16)
+								.detachedCopy();
+						logWriter.submit(() -> recentTrip
+								.writeToFolder(new File("logging/mispredicted")));
 					}
 				}
 			}
@@ -239,81 +506,202 @@ class GpsRealTimeInputWatcher {
 		nextStopPrediction.remove(trip.name);
 	}
 
-	private void demoteRoute(String name) {
-		int pathIndex = 0;
-		while (!paths.get(pathIndex).name.equals(name)) {
-			pathIndex++;
-		}
-		for (int i = 0; i < 3 && pathIndex < paths.size() - 1; i++) {
-			/* if demote */
-			if (Utils.randomBit()) {
-				/* demote */
-				Trip tempPath = paths.get(pathIndex);
-				paths.set(pathIndex, paths.get(pathIndex + 1));
-				paths.set(pathIndex + 1, tempPath);
-				pathIndex++;
-			}
-		}
-	}
-
-	private void processNewGpsInput(File jsonFile)
+	private void processNewGpsInput(Snapshot snapshot)
 			throws ProjectSpecificException {
-		System.out.println("Dealing with file " + jsonFile.getName());
-		BusTravelHistoryExtractor.updateBusesTravelHistoryWithFile(jsonFile);
+		System.out.println("Dealing with file " + snapshot.file.getName());
+		BusTravelHistoryExtractor.updateBusesTravelHistoryWithSnapshot(
+				snapshot.file, snapshot.bytes);
+		processVehicles();
+	}
 
-		// For each bus we want to make a prediction
+	/* Matches, predicts and logs for vehicles after their histories changed */
+	private void processVehicles() throws ProjectSpecificException {
+		ArrayList<Trip> trips = new ArrayList<Trip>();
 		for (String vehicleId : BusTravelHistoryExtractor.allHistories
 				.keySet()) {
 			Trip trip = getTrip(vehicleId, Trip.MINIMUM_NUMBER_OF_GPS_POINTS);
-			if (trip == null) {
-				continue;
+			if (trip != null) {
+				trips.add(trip);
 			}
+		}
+		matchNewVehicles(trips);
+
+		/*
+		 * Vehicles are processed in parallel, but anything they change or
+		 * print is applied afterwards in the order of vehicles, exactly as
+		 * if they were processed one by one.
+		 */
+		for (VehicleUpdate update : computeUpdates(trips)) {
+			if (update != null) {
+				applyUpdate(update);
+			}
+		}
 
-			Route route = routeFollowedByTrip(trip);
-			if (route == null) {
-				continue;
+		System.out.println("Handled the new GPS point.");
+		System.out.println();
+	}
+
+	/* What processing a vehicle's trip found out during a tick */
+	private static class VehicleUpdate {
+		final Trip trip;
+		final RouteRegistry.Entry followed;
+		final Route route;
+		boolean endOfRouteReached;
+		boolean deviated;
+		int recentStopIndex;
+		/* Predictions for the stops after recentStopIndex, null if none */
+		Prediction[] predictions;
+
+		VehicleUpdate(Trip trip, RouteRegistry.Entry followed) {
+			this.trip = trip;
+			this.followed = followed;
+			this.route = followed.route;
+		}
+	}
+
+	private static ExecutorService vehicleExecutor() {
+		if (VIRTUAL_THREADS) {
+			try {
+				/* Looked up reflectively, as it only exists since Java 21 */
+				return (ExecutorService) Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor")
+						.invoke(null);
+			} catch (ReflectiveOperationException exception) {
+				System.out.println(
+						"Virtual threads are not available, using a fixed pool");
 			}
+		}
+		if (WORKER_THREADS <= 1) {
+			return null;
+		}
+		return Executors.newFixedThreadPool(WORKER_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "vehicle-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
 
-			if (endOfRouteReached(trip, route)) {
-				System.out.println(trip.name + " at the end of " + route.name);
-				flushPredictions(trip);
-				removeVehicle(vehicleId);
-				continue;
+	/* Element i is the update of trips.get(i), null if it has no route */
+	private ArrayList<VehicleUpdate> computeUpdates(ArrayList<Trip> trips)
+			throws ProjectSpecificException {
+		ArrayList<VehicleUpdate> updates = new ArrayList<VehicleUpdate>();
+		if (vehicleExecutor == null) {
+			for (Trip trip : trips) {
+				updates.add(computeUpdate(trip));
 			}
+			return updates;
+		}
 
-			if (tripDeviatedFromRoute(trip, route)) {
-				System.out.println(trip.name + " deviated from " + route.name);
-				Utils.appendLineToFile(debugFile,
-						trip.name + " deviated from " + route.name);
-				removeVehicle(vehicleId);
-				demoteRoute(route.name);
-				continue;
+		ArrayList<Callable<VehicleUpdate>> tasks = new ArrayList<Callable<VehicleUpdate>>();
+		for (Trip trip : trips) {
+			tasks.add(() -> computeUpdate(trip));
+		}
+		try {
+			for (Future<VehicleUpdate> update : vehicleExecutor
+					.invokeAll(tasks)) {
+				updates.add(update.get());
+			}
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(exception);
+		} catch (ExecutionException exception) {
+			if (exception.getCause() instanceof ProjectSpecificException) {
+				throw (ProjectSpecificException) exception.getCause();
 			}
+			throw new RuntimeException(exception.getCause());
+		}
+		return updates;
+	}
 
-			int recentStopIndex = nextStopIndex(trip) - 1;
-			if (route.busStops.get(recentStopIndex).atStop(trip.lastPoint())) {
-				System.out.println("Predicting for " + trip.name);
-				ArrayList<Trip> historicalTrips = Trip.readFromFolder(
-						new File(tripsFolder.getName() + "/" + route.name));
-
-				Prediction prediction = ArrivalTimePredictor.makePrediction(
-						route.lastStop(), trip, historicalTrips);
-				prediction.predictionTimestamp = trip.lastPoint().timestamp;
-				prediction.route = route;
-				prediction.fromStopIndex = recentStopIndex;
-				prediction.toStopIndex = route.busStops.size() - 1;
-
-				if (!lastStopPredictions.containsKey(vehicleId)) {
-					lastStopPredictions.put(vehicleId,
-							new Prediction[route.busStops.size()]);
-				}
-				lastStopPredictions
-						.get(vehicleId)[recentStopIndex] = prediction;
+	/*
+	 * Runs in parallel for different vehicles, hence it only reads the
+	 * shared state, except for the vehicle's own prediction state.
+	 */
+	private VehicleUpdate computeUpdate(Trip trip)
+			throws ProjectSpecificException {
+		String vehicleId = trip.name;
+		RouteRegistry.Entry followed = vehicleFollowsRoute.get(vehicleId);
+		if (followed == null) {
+			return null;
+		}
+		Route route = followed.route;
+		VehicleUpdate update = new VehicleUpdate(trip, followed);
+
+		if (endOfRouteReached(trip, route)) {
+			update.endOfRouteReached = true;
+			return update;
+		}
+
+		if (tripDeviatedFromRoute(trip, followed)) {
+			update.deviated = true;
+			return update;
+		}
+
+		int recentStopIndex = nextStopIndex(trip, followed) - 1;
+		update.recentStopIndex = recentStopIndex;
+		if (route.busStops.get(recentStopIndex).atStop(trip.lastPoint())) {
+			/* All stops after the recent one, in a single batch */
+			int lastStopIndex = route.busStops.size() - 1;
+			int nextStopIndex = Math.min(recentStopIndex + 1, lastStopIndex);
+			Prediction[] predictions;
+			SegmentModelPredictor segmentModel = segmentModels.get(route.name);
+			if (segmentModel != null) {
+				predictions = segmentModel.makePredictions(recentStopIndex,
+						trip.lastTimestamp(), nextStopIndex, lastStopIndex);
+			} else {
+				RouteHistory history = historicalTripCache
+						.routeHistory(route);
+				predictions = predictionStates
+						.computeIfAbsent(vehicleId,
+								id -> new VehiclePredictionState())
+						.makePredictions(history, nextStopIndex,
+								lastStopIndex, trip);
 			}
+			for (int s = 0; s < predictions.length; s++) {
+				predictions[s].predictionTimestamp = trip.lastTimestamp();
+				predictions[s].route = route;
+				predictions[s].fromStopIndex = recentStopIndex;
+				predictions[s].toStopIndex = nextStopIndex + s;
+			}
+			update.predictions = predictions;
 		}
+		return update;
+	}
 
-		System.out.println("Handled the new GPS point.");
-		searchesPerformed = 0;
-		System.out.println();
+	private void applyUpdate(VehicleUpdate update) {
+		Trip trip = update.trip;
+		Route route = update.route;
+		String vehicleId = trip.name;
+
+		if (update.endOfRouteReached) {
+			System.out.println(trip.name + " at the end of " + route.name);
+			flushPredictions(trip);
+			removeVehicle(vehicleId);
+			return;
+		}
+
+		if (update.deviated) {
+			System.out.println(trip.name + " deviated from " + route.name);
+			logWriter.appendLine(debugFile,
+					trip.name + " deviated from " + route.name);
+			pathRanking.recordDeviation(update.followed,
+					trip.lastTimestamp());
+			removeVehicle(vehicleId);
+			return;
+		}
+
+		if (update.predictions != null) {
+			System.out.println("Predicting for " + trip.name);
+			Prediction[] predictions = update.predictions;
+			nextStopPrediction.put(vehicleId, predictions[0]);
+			Prediction prediction = predictions[predictions.length - 1];
+
+			if (!lastStopPredictions.containsKey(vehicleId)) {
+				lastStopPredictions.put(vehicleId,
+						new Prediction[route.busStops.size()]);
+			}
+			lastStopPredictions
+					.get(vehicleId)[update.recentStopIndex] = prediction;
+		}
 	}
 }
@@ -97,24 +97,27 @@ public class HistoricalDataBuilder {
 
 	public static Trip buildHistoricalTrip(Route route, Trip trip)
 			throws ProjectSpecificException {
-		if (!route.allStopsVisitedInOrder(trip)) {
+		int[] stopsAtPoints = route.stopsAt(trip);
+		if (!route.allStopsVisitedInOrder(trip, stopsAtPoints)) {
 			throw new ProjectSpecificException(
 					trip.name + " does not follow " + route.name);
 		}
 
-		BusStop firstStop = route.busStops.get(0);
 		int fromIndex = 0;
-		while (fromIndex < trip.gpsPoints.size()
-				&& !firstStop.atStop(trip.gpsPoints.get(fromIndex))) {
+		while (fromIndex < trip.size()
+				&& !route.atStop(stopsAtPoints, 0, trip, fromIndex)) {
 			fromIndex++;
 		}
 
 		// Finding the first point that reached the last stop
-		int toIndex = trip.gpsPoints.size() - 1;
-		while (toIndex >= 0 && !route.atLastStop(trip.gpsPoints.get(toIndex))) {
+		int lastStop = route.busStops.size() - 1;
+		int toIndex = trip.size() - 1;
+		while (toIndex >= 0
+				&& !route.atStop(stopsAtPoints, lastStop, trip, toIndex)) {
 			toIndex--;
 		}
-		while (toIndex >= 0 && route.atLastStop(trip.gpsPoints.get(toIndex))) {
+		while (toIndex >= 0
+				&& route.atStop(stopsAtPoints, lastStop, trip, toIndex)) {
 			toIndex--;
 		}
 		toIndex++;
@@ -0,0 +1,139 @@
+package bus;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Keeps histories (see RouteHistory) of recently predicted routes in memory,
+ * so that a prediction does not have to read and parse all of the route's trip
+ * files.
+ *
+ * The cache holds at most MEMORY_BUDGET_BYTES worth of histories (estimated
+ * from their numbers of GPS points and arrivals). When it holds more, the
+ * least recently used routes are evicted. A route is read again when its trip
+ * files change: when their number or the latest modification time among them
+ * changes. The folder's own modification time is not enough, as it stays the
+ * same when a trip file is rewritten in place (e.g. by HistoricalDataBuilder).
+ * Checking that costs a system call per trip file, so a cached route is
+ * checked at most once every RECHECK_MILLIS and a change may be noticed that
+ * much later.
+ *
+ * The values can be changed with -Dbus.historicalCacheBytes=...,
+ * -Dbus.preloadedRoutes=... (number of busiest routes read on start up) and
+ * -Dbus.historicalCacheRecheckMillis=...
+ */
+class HistoricalTripCache {
+	static final long MEMORY_BUDGET_BYTES = Long
+			.getLong("bus.historicalCacheBytes", 512L * 1024 * 1024);
+	static final int PRELOADED_ROUTES = Integer
+			.getInteger("bus.preloadedRoutes", 10);
+	static final long RECHECK_MILLIS = Long
+			.getLong("bus.historicalCacheRecheckMillis", 60000L);
+
+	/*
+	 * Trip's columns take 24 bytes per point, its unit vectors another 24 and
+	 * the nearest point index 5, plus array headers.
+	 */
+	private static final long BYTES_PER_GPS_POINT = 56;
+	private static final long BYTES_PER_ARRIVAL = 8;
+
+	private static class Entry {
+		final RouteHistory history;
+		final String folderSignature;
+		final long bytes;
+		/* When folderSignature was last found unchanged, guarded by cache */
+		long checkedMillis;
+
+		Entry(RouteHistory history, String folderSignature,
+				long checkedMillis) {
+			this.history = history;
+			this.folderSignature = folderSignature;
+			this.checkedMillis = checkedMillis;
+			long points = 0;
+			for (Trip trip : history.trips) {
+				points += trip.size();
+			}
+			this.bytes = points * BYTES_PER_GPS_POINT + (long) history.size()
+					* history.route.busStops.size() * BYTES_PER_ARRIVAL;
+		}
+	}
+
+	private final File tripsFolder;
+	private final long budgetBytes;
+	/* In access order, the least recently used route first */
+	private final LinkedHashMap<String /* route name */, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private long cachedBytes = 0;
+
+	HistoricalTripCache(File tripsFolder) {
+		this(tripsFolder, MEMORY_BUDGET_BYTES);
+	}
+
+	HistoricalTripCache(File tripsFolder, long budgetBytes) {
+		this.tripsFolder = tripsFolder;
+		this.budgetBytes = budgetBytes;
+	}
+
+	/*
+	 * Reads routes in the given order (busiest first), stopping at
+	 * PRELOADED_ROUTES routes or when the budget is used up.
+	 */
+	void preload(List<Route> routes) {
+		for (int r = 0; r < routes.size() && r < PRELOADED_ROUTES; r++) {
+			routeHistory(routes.get(r));
+			synchronized (this) {
+				if (cachedBytes >= budgetBytes) {
+					return;
+				}
+			}
+		}
+	}
+
+	RouteHistory routeHistory(Route route) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Entry entry = entries.get(route.name);
+			if (entry != null && now - entry.checkedMillis < RECHECK_MILLIS) {
+				return entry.history;
+			}
+		}
+
+		File folder = new File(tripsFolder, route.name);
+		String signature = Utils.folderSignature(folder);
+		synchronized (this) {
+			Entry entry = entries.get(route.name);
+			if (entry != null && entry.folderSignature.equals(signature)) {
+				entry.checkedMillis = now;
+				return entry.history;
+			}
+		}
+
+		/* Reading is slow, so other routes can be served meanwhile */
+		Entry entry = new Entry(
+				new RouteHistory(route, Trip.readFromFolder(folder)),
+				signature, now);
+		synchronized (this) {
+			Entry replaced = entries.put(route.name, entry);
+			if (replaced != null) {
+				cachedBytes -= replaced.bytes;
+			}
+			cachedBytes += entry.bytes;
+			evictLeastRecentlyUsed();
+		}
+		return entry.history;
+	}
+
+	/* Keeps the most recently used route even if it exceeds the budget */
+	private void evictLeastRecentlyUsed() {
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet()
+				.iterator();
+		while (cachedBytes > budgetBytes && entries.size() > 1) {
+			Entry evicted = iterator.next().getValue();
+			iterator.remove();
+			cachedBytes -= evicted.bytes;
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package bus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Writes log lines in a background thread, so that logging a prediction does
+ * not open, write and close a file in the middle of a tick.
+ *
+ * Lines wait in a bounded queue. The writer thread takes everything queued
+ * at once, appends it to files it keeps open, flushes them once per batch
+ * and forces them to disk every FSYNC_MILLIS. Files registered with rotate()
+ * are renamed to file.yyyy-MM-dd.n once they grow over ROTATE_BYTES or the
+ * day changes. When the queue is full, QUEUE_FULL_POLICY decides whether the
+ * tick waits for the writer (BLOCK) or the line is lost (DROP, counted and
+ * reported).
+ *
+ * Settings: -Dbus.logQueueCapacity=..., -Dbus.logFsyncMillis=... (0 forces
+ * only on close), -Dbus.logRotateBytes=..., -Dbus.logQueueFullPolicy=DROP
+ */
+class LogWriter {
+	enum QueueFullPolicy {
+		BLOCK, DROP
+	}
+
+	static final int QUEUE_CAPACITY = Integer
+			.getInteger("bus.logQueueCapacity", 1 << 16);
+	static final long FSYNC_MILLIS = Long.getLong("bus.logFsyncMillis", 1000L);
+	static final long ROTATE_BYTES = Long.getLong("bus.logRotateBytes",
+			64L << 20);
+	static final QueueFullPolicy QUEUE_FULL_POLICY = QueueFullPolicy.valueOf(
+			System.getProperty("bus.logQueueFullPolicy", "BLOCK"));
+
+	/* A line to append to a file, or a task to run in the writer thread */
+	private static class Entry {
+		final File file;
+		final String line;
+		final Runnable task;
+
+		Entry(File file, String line, Runnable task) {
+			this.file = file;
+			this.line = line;
+			this.task = task;
+		}
+	}
+
+	/* A file the writer thread keeps open for appending */
+	private static class OpenFile {
+		final FileOutputStream output;
+		final LocalDate day;
+		/* Lines of the current batch, written to the file all at once */
+		final StringBuilder pending = new StringBuilder();
+		long size;
+		boolean unsynced;
+
+		OpenFile(File file) throws IOException {
+			this.day = file.exists() ? day(file.lastModified()) : today();
+			this.output = new FileOutputStream(file, true);
+			this.size = file.length();
+		}
+	}
+
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(
+			QUEUE_CAPACITY);
+	private final AtomicLong dropped = new AtomicLong();
+	private long droppedReported;
+
+	/* Only accessed by the writer thread */
+	private final HashMap<File, OpenFile> openFiles = new HashMap<File, OpenFile>();
+	private final HashSet<File> rotatedFiles = new HashSet<File>();
+	private long lastSync = System.currentTimeMillis();
+
+	private final Thread thread;
+	private volatile boolean closed;
+
+	LogWriter() {
+		thread = new Thread(this::run, "log-writer");
+		thread.setDaemon(true);
+		thread.start();
+		/* Whatever is queued when the program is stopped is still written */
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+	}
+
+	/* Lines appended to the file are rotated by size and by day */
+	void rotate(File file) {
+		enqueue(new Entry(null, null, () -> rotatedFiles.add(file)));
+	}
+
+	void appendLine(File file, String line) {
+		enqueue(new Entry(file, line, null));
+	}
+
+	/*
+	 * Runs the task in the writer thread, after the lines queued before it
+	 * have been written.
+	 */
+	void submit(Runnable task) {
+		enqueue(new Entry(null, null, task));
+	}
+
+	private void enqueue(Entry entry) {
+		if (closed) {
+			throw new IllegalStateException("The log writer is closed");
+		}
+		if (QUEUE_FULL_POLICY == QueueFullPolicy.DROP) {
+			if (!queue.offer(entry)) {
+				dropped.incrementAndGet();
+			}
+			return;
+		}
+		try {
+			queue.put(entry);
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(exception);
+		}
+	}
+
+	/* Waits until everything queued so far is written and forced to disk */
+	void close() {
+		closed = true;
+		try {
+			thread.join();
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		ArrayList<Entry> batch = new ArrayList<Entry>();
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Entry first = queue.poll(
+						FSYNC_MILLIS > 0 ? FSYNC_MILLIS : 1000L,
+						TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch);
+				}
+			} catch (InterruptedException exception) {
+				break;
+			}
+			writeBatch(batch);
+			batch.clear();
+		}
+		queue.drainTo(batch);
+		writeBatch(batch);
+		sync(true);
+		for (OpenFile openFile : openFiles.values()) {
+			closeQuietly(openFile);
+		}
+		openFiles.clear();
+	}
+
+	/*
+	 * Errors are printed and the batch goes on, a broken log must not stop
+	 * the predictions.
+	 */
+	private void writeBatch(ArrayList<Entry> batch) {
+		for (Entry entry : batch) {
+			try {
+				if (entry.task != null) {
+					flush();
+					entry.task.run();
+				} else {
+					write(entry.file, entry.line);
+				}
+			} catch (Exception exception) {
+				exception.printStackTrace();
+			}
+		}
+		flush();
+		sync(false);
+
+		long droppedNow = dropped.get();
+		if (droppedNow > droppedReported) {
+			System.out.println("Log queue was full, dropped "
+					+ (droppedNow - droppedReported) + " lines");
+			droppedReported = droppedNow;
+		}
+	}
+
+	private void write(File file, String line) throws IOException {
+		OpenFile openFile = openFiles.get(file);
+		if (openFile != null && rotatedFiles.contains(file)
+				&& (openFile.size >= ROTATE_BYTES
+						|| !openFile.day.equals(today()))) {
+			flush(openFile);
+			closeQuietly(openFile);
+			openFiles.remove(file);
+			rotateFile(file, openFile.day);
+			openFile = null;
+		}
+		if (openFile == null) {
+			openFile = new OpenFile(file);
+			openFiles.put(file, openFile);
+		}
+		openFile.pending.append(line).append('\n');
+		/* Lines are almost always ASCII, so this is close to the byte count */
+		openFile.size += line.length() + 1;
+	}
+
+	private static void rotateFile(File file, LocalDate day) {
+		File rotated;
+		int n = 0;
+		do {
+			rotated = new File(file.getPath() + "." + day + "." + n++);
+		} while (rotated.exists());
+		if (!file.renameTo(rotated)) {
+			System.out.println("Could not rotate " + file.getPath());
+		}
+	}
+
+	private void flush() {
+		for (OpenFile openFile : openFiles.values()) {
+			flush(openFile);
+		}
+	}
+
+	private static void flush(OpenFile openFile) {
+		if (openFile.pending.length() == 0) {
+			return;
+		}
+		try {
+			openFile.output.write(openFile.pending.toString()
+					.getBytes(StandardCharsets.UTF_8));
+			openFile.unsynced = true;
+		} catch (IOException exception) {
+			exception.printStackTrace();
+		}
+		openFile.pending.setLength(0);
+	}
+
+	private void sync(boolean now) {
+		long time = System.currentTimeMillis();
+		if (!now && (FSYNC_MILLIS <= 0 || time - lastSync < FSYNC_MILLIS)) {
+			return;
+		}
+		lastSync = time;
+		for (OpenFile openFile : openFiles.values()) {
+			if (!openFile.unsynced) {
+				continue;
+			}
+			try {
+				openFile.output.getFD().sync();
+				openFile.unsynced = false;
+			} catch (IOException exception) {
+				exception.printStackTrace();
+			}
+		}
+	}
+
+	private static void closeQuietly(OpenFile openFile) {
+		try {
+			openFile.output.close();
+		} catch (IOException exception) {
+			exception.printStackTrace();
+		}
+	}
+
+	private static LocalDate today() {
+		return LocalDate.now();
+	}
+
+	private static LocalDate day(long millis) {
+		return Instant.ofEpochMilli(millis).atZone(ZoneId.systemDefault())
+				.toLocalDate();
+	}
+}
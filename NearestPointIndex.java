@@ -0,0 +1,181 @@
+package bus;
+
+/*
+ * KD-tree over the GPS points of a trip, answering which point is the closest
+ * to a given point in O(log n) distance computations instead of n.
+ *
+ * Points are placed on the unit sphere as 3D vectors, where the straight line
+ * (chord) distance grows together with the great-circle distance. The tree
+ * uses chords only to skip subtrees that can not contain a closer point.
+ * Candidates themselves are compared with Trip.distanceOrder and ties go to
+ * the smaller index, so the answer is the same as of a linear scan.
+ *
+ * Trip.distanceOrder is a chord only for great-circle distances, hence the
+ * tree must not be used with Utils.PLANAR_DISTANCE.
+ *
+ * The tree is implicit: the node of the index range [from, to) is the middle
+ * index, and its subtrees are the ranges on both sides of it.
+ */
+class NearestPointIndex {
+	/*
+	 * Chords are computed differently from Trip.distanceOrder, so subtrees
+	 * are skipped only if they are further than this (squared chord) margin.
+	 */
+	private static final double CHORD_SLACK = 1e-12;
+
+	private final Trip trip;
+	/* Point indices in tree order */
+	private final int[] order;
+	/* Split axis (0 - x, 1 - y, 2 - z) of the node at each tree position */
+	private final byte[] axes;
+	/* [axis][point index], the trip's own unit vectors, not a copy */
+	private final double[][] coordinates;
+
+	/* State of the query being answered */
+	private static class Query {
+		final GpsPoint point;
+		final double[] coordinates;
+		int bestIndex = -1;
+		double bestOrder = Double.MAX_VALUE;
+		double bound = Double.MAX_VALUE;
+
+		Query(GpsPoint point) {
+			this.point = point;
+			this.coordinates = new double[] { point.unitX(), point.unitY(),
+					point.unitZ() };
+		}
+	}
+
+	NearestPointIndex(Trip trip, Trip.UnitVectors unitVectors) {
+		this.trip = trip;
+		int size = trip.size();
+		coordinates = new double[][] { unitVectors.xs, unitVectors.ys,
+				unitVectors.zs };
+		order = new int[size];
+		axes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		build(0, size);
+	}
+
+	/* Index of the trip's point closest to the point */
+	int closestPointIndex(GpsPoint point) {
+		return closestPointIndex(point, -1);
+	}
+
+	/*
+	 * Same as above, but starts from a guess (e.g. the answer for a nearby
+	 * point), which lets more subtrees be skipped. -1 means no guess.
+	 */
+	int closestPointIndex(GpsPoint point, int guess) {
+		Query query = new Query(point);
+		if (guess >= 0 && guess < order.length) {
+			consider(query, guess);
+		}
+		search(query, 0, order.length);
+		return query.bestIndex;
+	}
+
+	private void search(Query query, int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		int pointIndex = order[middle];
+		consider(query, pointIndex);
+
+		int axis = axes[middle];
+		double difference = query.coordinates[axis]
+				- coordinates[axis][pointIndex];
+		if (difference < 0) {
+			search(query, from, middle);
+			if (difference * difference <= query.bound) {
+				search(query, middle + 1, to);
+			}
+		} else {
+			search(query, middle + 1, to);
+			if (difference * difference <= query.bound) {
+				search(query, from, middle);
+			}
+		}
+	}
+
+	private void consider(Query query, int pointIndex) {
+		double distanceOrder = trip.distanceOrder(pointIndex, query.point);
+		if (distanceOrder < query.bestOrder || (distanceOrder == query.bestOrder
+				&& pointIndex < query.bestIndex)) {
+			query.bestOrder = distanceOrder;
+			query.bestIndex = pointIndex;
+			/* distanceOrder is -cos, and squared chord is 2 - 2 * cos */
+			query.bound = Math.max(0.0, 2.0 + 2.0 * distanceOrder)
+					+ CHORD_SLACK;
+		}
+	}
+
+	/* Arranges order[from, to) into a subtree */
+	private void build(int from, int to) {
+		if (to - from <= 1) {
+			return;
+		}
+		int axis = widestAxis(from, to);
+		int middle = (from + to) >>> 1;
+		select(coordinates[axis], from, to - 1, middle);
+		axes[middle] = (byte) axis;
+		build(from, middle);
+		build(middle + 1, to);
+	}
+
+	private int widestAxis(int from, int to) {
+		int widestAxis = 0;
+		double widestSpread = -1.0;
+		for (int axis = 0; axis < 3; axis++) {
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			for (int i = from; i < to; i++) {
+				double value = coordinates[axis][order[i]];
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			if (max - min > widestSpread) {
+				widestSpread = max - min;
+				widestAxis = axis;
+			}
+		}
+		return widestAxis;
+	}
+
+	/*
+	 * Quickselect: rearranges order[low, high] so that order[k] has the k-th
+	 * smallest value, smaller ones are before it and larger ones after it.
+	 */
+	private void select(double[] values, int low, int high, int k) {
+		while (low < high) {
+			double pivot = values[order[(low + high) >>> 1]];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (values[order[i]] < pivot) {
+					i++;
+				}
+				while (values[order[j]] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					int temp = order[i];
+					order[i] = order[j];
+					order[j] = temp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				high = j;
+			} else if (k >= i) {
+				low = i;
+			} else {
+				return;
+			}
+		}
+	}
+}
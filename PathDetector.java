@@ -9,10 +9,48 @@ class PathDetector {
 
 	private static boolean similarNumberOfPointsUsedToAlign(Trip trip,
 			int pointsUsedToAlign) {
-		return (double) pointsUsedToAlign / (double) trip.gpsPoints.size() <= 3
+		return (double) pointsUsedToAlign / (double) trip.size() <= 3
 				* SIMILARITY_THRESHOLD;
 	}
 
+	/*
+	 * Any alignment cost exceeds the number of aligned points by at least
+	 * this much (minus rounding errors) if the threshold can not be met.
+	 */
+	private static final double ABANDON_MARGIN = 1e-9;
+
+	/*
+	 * Rows of the alignment computation. Only two consecutive rows are ever
+	 * needed, so they are kept per thread and reused between calls.
+	 */
+	private static class AlignmentRows {
+		double[] previousCost = new double[0];
+		double[] currentCost = new double[0];
+		int[] previousFirst = new int[0];
+		int[] currentFirst = new int[0];
+
+		void ensureLength(int length) {
+			if (previousCost.length < length) {
+				previousCost = new double[length];
+				currentCost = new double[length];
+				previousFirst = new int[length];
+				currentFirst = new int[length];
+			}
+		}
+
+		void swap() {
+			double[] cost = previousCost;
+			previousCost = currentCost;
+			currentCost = cost;
+			int[] first = previousFirst;
+			previousFirst = currentFirst;
+			currentFirst = first;
+		}
+	}
+
+	private static final ThreadLocal<AlignmentRows> ALIGNMENT_ROWS = ThreadLocal
+			.withInitial(AlignmentRows::new);
+
 	/*
 	 * The smaller similarity measure, the more similar tripsInterval to some
 	 * interval of fullTrip is.
@@ -23,56 +61,76 @@ class PathDetector {
 	 * equal the "best" segment's length. If the bus is not following the route
 	 * exactly, then point's distance to the "best" segment's corners due to
 	 * triangle inequality will be larger.
+	 *
+	 * alignmentCost[i][j] is the cost of aligning first i points of the trip
+	 * to the first j segments of the path:
+	 * alignmentCost[0][j] = 0, alignmentCost[i][0] = infinity and
+	 * alignmentCost[i][j] = min(alignmentCost[i][j - 1],
+	 *     ratio(i-th point, j-th segment) + alignmentCost[i - 1][j]).
+	 *
+	 * Only rows i - 1 and i are kept. The first segment used by the alignment
+	 * is found by walking back from the last one: at row i and column f the
+	 * walk moves to column f - 1 if alignmentCost[i][f - 1] <
+	 * ratio(i-th point, f-th segment) + alignmentCost[i - 1][f - 1] and to
+	 * row i - 1 otherwise, until row 0 is reached. Instead of walking,
+	 * first[i][f] (column where the walk from row i and column f ends) is
+	 * computed together with the costs, as first[0][f] = f and first[i][f] =
+	 * first[i][f - 1] or first[i - 1][f], depending on the same condition.
+	 *
+	 * Each ratio is at least 1, hence alignmentCost[i][jMax] - i never
+	 * decreases with i. Once it reaches SIMILARITY_THRESHOLD, the trip can not
+	 * follow the path and the computation stops.
 	 */
 	static boolean tripFollowsPath(Trip trip, Trip path) {
-		final int iMax = trip.gpsPoints.size();
-		final int jMax = path.gpsPoints.size() - 1;
+		final int iMax = trip.size();
+		final int jMax = path.size() - 1;
 
-		double[][] alignmentCost = new double[iMax + 1][jMax + 1];
-		for (int i = 1; i <= iMax; i++) {
-			alignmentCost[i][0] = Double.MAX_VALUE;
-		}
+		AlignmentRows rows = ALIGNMENT_ROWS.get();
+		rows.ensureLength(jMax + 1);
 		for (int j = 0; j <= jMax; j++) {
-			alignmentCost[0][j] = 0.0;
+			rows.currentCost[j] = 0.0;
+			rows.currentFirst[j] = j;
 		}
 
 		for (int i = 1; i <= iMax; i++) {
+			rows.swap();
+			double[] previousCost = rows.previousCost;
+			double[] cost = rows.currentCost;
+			int[] previousFirst = rows.previousFirst;
+			int[] first = rows.currentFirst;
+			/* Walk is over at the last row, which is not part of it */
+			boolean walkRow = i < iMax;
+
+			cost[0] = Double.MAX_VALUE;
+			first[0] = 0;
 			for (int j = 1; j <= jMax; j++) {
-				alignmentCost[i][j] = Math.min(alignmentCost[i][j - 1],
-						trip.gpsPoints.get(i - 1 /* i-th point */)
-								.ratioToSegmentCorners(
-										path.gpsPoints.get(j - 1),
-										path.gpsPoints.get(j))
-								+ alignmentCost[i - 1][j]);
+				double ratio = trip.ratioToSegmentCorners(
+						i - 1 /* i-th point */, path, j);
+				cost[j] = Math.min(cost[j - 1], ratio + previousCost[j]);
+				if (walkRow) {
+					first[j] = cost[j - 1] < ratio + previousCost[j - 1]
+							? first[j - 1] : previousFirst[j];
+				}
+			}
+
+			if (cost[jMax] - i >= SIMILARITY_THRESHOLD + ABANDON_MARGIN) {
+				return false;
 			}
 		}
 
 		/*
-		 * After the for loop terminates, the alignmentCost[iMax][jMax] contains
-		 * the desired cost value. I now compute what points are used to
-		 * produce this cost.
+		 * After the for loop terminates, the currentCost contains the last row
+		 * of alignmentCost, and previousFirst the walks from its previous row.
 		 */
+		double[] cost = rows.currentCost;
 		int last = jMax;
-		while (last > 0
-				&& alignmentCost[iMax][last] == alignmentCost[iMax][last - 1]) {
+		while (last > 0 && cost[last] == cost[last - 1]) {
 			last--;
 		}
-		int first = last;
-		int i = iMax - 1;
-		while (i > 0) {
-			if (alignmentCost[i][first - 1] < trip.gpsPoints
-					.get(i - 1 /* i-th point */)
-					.ratioToSegmentCorners(path.gpsPoints.get(first - 1),
-							path.gpsPoints.get(first))
-					+ alignmentCost[i - 1][first - 1]) {
-				first--;
-			} else {
-				i--;
-			}
-		}
+		int first = iMax > 0 ? rows.previousFirst[last] : last;
 
 		return similarNumberOfPointsUsedToAlign(trip, last - first + 1)
-				&& (alignmentCost[iMax][jMax] - iMax < SIMILARITY_THRESHOLD);
+				&& (cost[jMax] - iMax < SIMILARITY_THRESHOLD);
 	}
 
-}
\ No newline at end of file
+}
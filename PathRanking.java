@@ -0,0 +1,218 @@
+package bus;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/*
+ * Orders the paths (of the routes in RouteRegistry) a new vehicle is tested
+ * against, so that the path it most likely follows is tested first. For each
+ * route and hour of the day it counts:
+ *
+ * - historical trips of the route starting in the hour, read from the
+ * historical folders (one listing per folder, then only the first point of
+ * each file is read);
+ * - vehicles matched to the path in the hour, since the program started;
+ * - vehicles that deviated from the path in the hour.
+ *
+ * Routes are ranked by (historical + matched) * (matched + 1) / (matched +
+ * deviated + 1): how often the route is driven at that time of day, lowered
+ * when vehicles matched to it tend to deviate. Equally ranked routes keep the
+ * order of their ids.
+ *
+ * Historical counts are saved to a counts file together with the route
+ * folder's signature (see Utils.folderSignature). On the next start only the
+ * routes whose folders changed are read again, the others take the saved
+ * counts. The file's lines are: route name,signature,count of hour 0,...
+ *
+ * Orders are sorted once per hour and sorted again only after a count of the
+ * hour changes. Methods are synchronized, as vehicles are matched in
+ * parallel.
+ */
+class PathRanking {
+	private static final int HOURS = 24;
+
+	private final RouteRegistry routes;
+	/* [hour][route id] */
+	private final int[][] historical = new int[HOURS][];
+	private final int[][] matched = new int[HOURS][];
+	private final int[][] deviated = new int[HOURS][];
+	/* Routes of each hour from the most likely, null if not sorted yet */
+	private final RouteRegistry.Entry[][] orders = new RouteRegistry.Entry[HOURS][];
+
+	PathRanking(RouteRegistry routes, File tripsFolder, File countsFile) {
+		this.routes = routes;
+		for (int hour = 0; hour < HOURS; hour++) {
+			historical[hour] = new int[routes.size()];
+			matched[hour] = new int[routes.size()];
+			deviated[hour] = new int[routes.size()];
+		}
+
+		Map<String, String[]> saved = readCounts(countsFile);
+		String[] lines = new String[routes.size()];
+		/* Each route only writes its own counts, so routes run in parallel */
+		IntStream.range(0, routes.size()).parallel()
+				.forEach(id -> lines[id] = countHistoricalTrips(id,
+						tripsFolder, saved));
+		writeCounts(countsFile, lines);
+	}
+
+	/* Fills the route's historical counts, returns its counts file line */
+	private String countHistoricalTrips(int id, File tripsFolder,
+			Map<String, String[]> saved) {
+		String name = routes.entry(id).route.name;
+		File routeFolder = new File(tripsFolder, name);
+		/* Taken first, so that files changing meanwhile are read next time */
+		String signature = Utils.folderSignature(routeFolder);
+		String[] savedLine = saved.get(name);
+		if (savedLine != null && savedLine[1].equals(signature)) {
+			for (int hour = 0; hour < HOURS; hour++) {
+				historical[hour][id] = Integer.parseInt(savedLine[2 + hour]);
+			}
+		} else {
+			File[] files = routeFolder.listFiles();
+			for (File file : files == null ? new File[0] : files) {
+				try {
+					historical[hour(Trip.readFirstTimestamp(file))][id]++;
+				} catch (ProjectSpecificException exception) {
+					System.out.println(exception.getMessage());
+				}
+			}
+		}
+
+		StringBuilder line = new StringBuilder(name).append(',')
+				.append(signature);
+		for (int hour = 0; hour < HOURS; hour++) {
+			line.append(',').append(historical[hour][id]);
+		}
+		return line.toString();
+	}
+
+	/* Saved lines by route name, lines that can not be used are left out */
+	private static Map<String, String[]> readCounts(File countsFile) {
+		Map<String, String[]> saved = new HashMap<String, String[]>();
+		if (!countsFile.exists()) {
+			return saved;
+		}
+		try (BufferedReader reader = new BufferedReader(
+				new FileReader(countsFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(",", -1);
+				if (fields.length != 2 + HOURS) {
+					continue;
+				}
+				try {
+					for (int hour = 0; hour < HOURS; hour++) {
+						Integer.parseInt(fields[2 + hour]);
+					}
+				} catch (NumberFormatException exception) {
+					continue;
+				}
+				saved.put(fields[0], fields);
+			}
+		} catch (IOException exception) {
+			System.out.println("Can not read historical trip counts: "
+					+ exception.getMessage());
+		}
+		return saved;
+	}
+
+	/*
+	 * Written to a temporary file first, so that an interrupted write does
+	 * not leave a truncated count behind a valid signature.
+	 */
+	private static void writeCounts(File countsFile, String[] lines) {
+		File temporary = new File(countsFile.getPath() + ".tmp");
+		try {
+			try (BufferedWriter writer = new BufferedWriter(
+					new FileWriter(temporary))) {
+				for (String line : lines) {
+					writer.write(line);
+					writer.newLine();
+				}
+			}
+			Files.move(temporary.toPath(), countsFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException exception) {
+			/* Only the next start is slower */
+			System.out.println("Can not save historical trip counts: "
+					+ exception.getMessage());
+		}
+	}
+
+	private static int hour(long timestamp) {
+		return TimestampCodec.secondOfDay(timestamp) / 3600;
+	}
+
+	/*
+	 * Routes in the order to test their paths at the timestamp. Must not be
+	 * modified.
+	 */
+	synchronized RouteRegistry.Entry[] routesToTest(long timestamp) {
+		int hour = hour(timestamp);
+		if (orders[hour] == null) {
+			/* Stable, so equally ranked routes keep the order of ids */
+			orders[hour] = sortedRoutes((id1, id2) -> Double
+					.compare(score(hour, id2), score(hour, id1)));
+		}
+		return orders[hour];
+	}
+
+	private double score(int hour, int id) {
+		double matches = matched[hour][id];
+		return (historical[hour][id] + matches) * (matches + 1.0)
+				/ (matches + deviated[hour][id] + 1.0);
+	}
+
+	/* Routes with the most historical trips first */
+	synchronized RouteRegistry.Entry[] routesByHistoricalTrips() {
+		int[] trips = new int[routes.size()];
+		for (int id = 0; id < routes.size(); id++) {
+			for (int hour = 0; hour < HOURS; hour++) {
+				trips[id] += historical[hour][id];
+			}
+		}
+		return sortedRoutes((id1, id2) -> trips[id2] - trips[id1]);
+	}
+
+	private RouteRegistry.Entry[] sortedRoutes(
+			Comparator<Integer> idComparator) {
+		Integer[] ids = new Integer[routes.size()];
+		for (int id = 0; id < ids.length; id++) {
+			ids[id] = id;
+		}
+		Arrays.sort(ids, idComparator);
+		RouteRegistry.Entry[] sorted = new RouteRegistry.Entry[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			sorted[i] = routes.entry(ids[i]);
+		}
+		return sorted;
+	}
+
+	/* A vehicle was matched to the route's path at the timestamp */
+	synchronized void recordMatch(RouteRegistry.Entry route, long timestamp) {
+		int hour = hour(timestamp);
+		matched[hour][route.id]++;
+		orders[hour] = null;
+	}
+
+	/* A vehicle following the route deviated from it at the timestamp */
+	synchronized void recordDeviation(RouteRegistry.Entry route,
+			long timestamp) {
+		int hour = hour(timestamp);
+		deviated[hour][route.id]++;
+		orders[hour] = null;
+	}
+}
@@ -1,7 +1,5 @@
 package bus;
 
-import java.io.File;
-
 class Prediction {
 	/*
 	 * The time we predict the bus will arrive at the stop. This is the most
@@ -10,6 +8,13 @@ class Prediction {
 	 */
 	final long predictedTimestamp;
 
+	/*
+	 * 10th and 90th percentiles of the predictions made from single
+	 * historical trips, the bus is likely to arrive between them.
+	 */
+	long lowerTimestamp;
+	long upperTimestamp;
+
 	/* The timestamp at which the prediction is made */
 	long predictionTimestamp;
 
@@ -32,19 +37,18 @@ class Prediction {
 	}
 
 	/*
-	 * Example that will get appended:
+	 * Example line (appended to the predictions log):
 	 * // name,prediction_timestamp,actual_arrival_timestamp,prediction_error
 	 * day18_bus14365_subtrip0,2016-01-18 13:45:46,2016-01-18 13:52:06,-100
 	 */
-	void appendToFile(File file, long actualArrivalTimestamp) {
-		String predictionLine = name + "," + route.name + "," + fromStopIndex
-				+ "," + toStopIndex + ","
+	String serializeToString(long actualArrivalTimestamp) {
+		return name + "," + route.name + "," + fromStopIndex + ","
+				+ toStopIndex + ","
 				+ Utils.convertTimestampToDate(predictionTimestamp) + ","
 				+ Utils.convertTimestampToDate(predictedTimestamp) + ","
 				+ Utils.convertTimestampToDate(actualArrivalTimestamp) + ","
 				+ (actualArrivalTimestamp - predictionTimestamp) + ","
 				+ (predictedTimestamp - actualArrivalTimestamp);
-		Utils.appendLineToFile(file, predictionLine);
 	}
 
 }
\ No newline at end of file
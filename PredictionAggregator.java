@@ -0,0 +1,165 @@
+package bus;
+
+import java.util.Arrays;
+
+/*
+ * Combines candidate predictions (one per historical trip) into a single
+ * predicted timestamp, together with the 10th and 90th percentiles of the
+ * candidates.
+ *
+ * Candidates are kept in primitive arrays reused by the thread, and the
+ * order statistics are found by quickselect instead of sorting: the 10th
+ * percentile is selected first, then the median among the candidates above
+ * it, then the 90th percentile among those above the median. Afterwards the
+ * candidates between the two percentiles are exactly the ones the trimmed
+ * mean needs, so all statistics take O(n) together.
+ *
+ * Candidates with equal timestamps are ordered by when they were added, so
+ * the median is the same candidate a stable sort would put in the middle.
+ *
+ * Usage:
+ * PredictionAggregator aggregator = PredictionAggregator.start();
+ * aggregator.add(predictedTimestamp, candidateId); ...
+ * aggregator.aggregate();
+ * ... aggregator.value(), aggregator.medianId(), aggregator.lowerTimestamp() ...
+ */
+class PredictionAggregator {
+	/* Which statistic of the candidates becomes the predicted timestamp */
+	enum Statistic {
+		MEDIAN, TRIMMED_MEAN
+	}
+
+	/* Can be changed with -Dbus.predictionStatistic=TRIMMED_MEAN */
+	static final Statistic STATISTIC = Statistic.valueOf(
+			System.getProperty("bus.predictionStatistic", "MEDIAN"));
+
+	/* Fraction of candidates below the lower (and above the upper) bound */
+	private static final int PERCENTILE_DIVISOR = 10;
+
+	private static final ThreadLocal<PredictionAggregator> AGGREGATOR = ThreadLocal
+			.withInitial(PredictionAggregator::new);
+
+	private long[] timestamps = new long[64];
+	private int[] ids = new int[64];
+	/* Positions (in order of adding) of the candidates, partially ordered */
+	private int[] order = new int[64];
+	private int size;
+
+	private int lowerRank;
+	private int medianRank;
+	private int upperRank;
+	private long trimmedSum;
+
+	/* Returns the thread's aggregator, emptied */
+	static PredictionAggregator start() {
+		PredictionAggregator aggregator = AGGREGATOR.get();
+		aggregator.size = 0;
+		return aggregator;
+	}
+
+	void add(long predictedTimestamp, int candidateId) {
+		if (size == timestamps.length) {
+			timestamps = Arrays.copyOf(timestamps, 2 * size);
+			ids = Arrays.copyOf(ids, 2 * size);
+			order = new int[2 * size];
+		}
+		timestamps[size] = predictedTimestamp;
+		ids[size] = candidateId;
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void aggregate() throws ProjectSpecificException {
+		if (size == 0) {
+			throw new ProjectSpecificException(
+					"There are no candidate predictions to aggregate");
+		}
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		lowerRank = size / PERCENTILE_DIVISOR;
+		medianRank = size / 2;
+		upperRank = size - 1 - size / PERCENTILE_DIVISOR;
+		select(0, size - 1, lowerRank);
+		select(lowerRank, size - 1, medianRank);
+		select(medianRank, size - 1, upperRank);
+
+		trimmedSum = 0;
+		for (int i = lowerRank; i <= upperRank; i++) {
+			trimmedSum += timestamps[order[i]];
+		}
+	}
+
+	/* The statistic chosen by STATISTIC */
+	long value() {
+		return STATISTIC == Statistic.TRIMMED_MEAN ? trimmedMean() : median();
+	}
+
+	long median() {
+		return timestamps[order[medianRank]];
+	}
+
+	/* Id of the candidate whose timestamp is the median */
+	int medianId() {
+		return ids[order[medianRank]];
+	}
+
+	/* Mean of the candidates between the lower and the upper bound */
+	long trimmedMean() {
+		return Math.round(
+				(double) trimmedSum / (double) (upperRank - lowerRank + 1));
+	}
+
+	/* 10th percentile */
+	long lowerTimestamp() {
+		return timestamps[order[lowerRank]];
+	}
+
+	/* 90th percentile */
+	long upperTimestamp() {
+		return timestamps[order[upperRank]];
+	}
+
+	private boolean less(int position1, int position2) {
+		return timestamps[position1] < timestamps[position2]
+				|| (timestamps[position1] == timestamps[position2]
+						&& position1 < position2);
+	}
+
+	/*
+	 * Rearranges order[low, high] so that order[k] is the k-th smallest
+	 * candidate, smaller ones are before it and larger ones after it.
+	 */
+	private void select(int low, int high, int k) {
+		while (low < high) {
+			int pivot = order[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (less(order[i], pivot)) {
+					i++;
+				}
+				while (less(pivot, order[j])) {
+					j--;
+				}
+				if (i <= j) {
+					int temp = order[i];
+					order[i] = order[j];
+					order[j] = temp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				high = j;
+			} else if (k >= i) {
+				low = i;
+			} else {
+				return;
+			}
+		}
+	}
+}
@@ -57,19 +57,15 @@ class PredictionEvaluator {
 	}
 
 	static boolean correctMorningTime(long timestamp) {
-		return correctTime("08", timestamp) || correctTime("09", timestamp);
+		return correctTime(8, 9, timestamp);
 	}
 
 	static boolean correctDayTime(long timestamp) {
-		return correctTime("10", timestamp) || correctTime("11", timestamp)
-				|| correctTime("12", timestamp) || correctTime("13", timestamp)
-				|| correctTime("14", timestamp) || correctTime("15", timestamp)
-				|| correctTime("16", timestamp);
+		return correctTime(10, 16, timestamp);
 	}
 
 	static boolean correctEveningTime(long timestamp) {
-		return correctTime("17", timestamp) || correctTime("18", timestamp)
-				|| correctTime("19", timestamp);
+		return correctTime(17, 19, timestamp);
 	}
 
 	static boolean correctNightTime(long timestamp) {
@@ -77,9 +73,11 @@ class PredictionEvaluator {
 				&& !correctEveningTime(timestamp);
 	}
 
-	private static boolean correctTime(String time, long timestamp) {
-		return Utils.convertTimestampToDate(timestamp).substring(11, 13)
-				.equals(time);
+	/* Whether the timestamp's hour is within [fromHour, toHour] */
+	private static boolean correctTime(int fromHour, int toHour,
+			long timestamp) {
+		int hour = TimestampCodec.hourOfDay(timestamp);
+		return hour >= fromHour && hour <= toHour;
 	}
 
 	public static ArrayList<Trip> getTripsOfCertainTime(
@@ -88,7 +86,7 @@ class PredictionEvaluator {
 		ArrayList<Trip> tripsOfCertainTime = new ArrayList<Trip>();
 
 		for (Trip trip : trips) {
-			if (correctTime.apply(trip.firstPoint().timestamp)) {
+			if (correctTime.apply(trip.timestamp(0))) {
 				tripsOfCertainTime.add(trip);
 			}
 		}
@@ -97,16 +95,32 @@ class PredictionEvaluator {
 	}
 
 	public static Trip upToStop(int upToNumber, Trip trip, Route route) {
-		for (int p = 0; p < trip.gpsPoints.size(); p++) {
-			if (route.busStops.get(upToNumber).atStop(trip.gpsPoints.get(p))) {
-				ArrayList<GpsPoint> points = new ArrayList<GpsPoint>(
-						trip.gpsPoints.subList(0, p));
-				for (int i = 0; i < Trip.MINIMUM_NUMBER_OF_GPS_POINTS
-						- p; i++) {
-					points.add(0, trip.gpsPoints.get(0));
+		return upToStop(upToNumber, trip, route, route.stopsAt(trip));
+	}
+
+	/* Same as above, where stopsAtPoints are route.stopsAt(trip) */
+	static Trip upToStop(int upToNumber, Trip trip, Route route,
+			int[] stopsAtPoints) {
+		for (int p = 0; p < trip.size(); p++) {
+			if (route.atStop(stopsAtPoints, upToNumber, trip, p)) {
+				/*
+				 * Points before the stop are kept. If there are too few of
+				 * them, the first point is repeated at the front.
+				 */
+				int padding = Math.max(0,
+						Trip.MINIMUM_NUMBER_OF_GPS_POINTS - p);
+				long[] timestamps = new long[padding + p];
+				double[] latitudes = new double[padding + p];
+				double[] longitudes = new double[padding + p];
+				for (int i = 0; i < padding + p; i++) {
+					int source = Math.max(0, i - padding);
+					timestamps[i] = trip.timestamp(source);
+					latitudes[i] = trip.latitude(source);
+					longitudes[i] = trip.longitude(source);
 				}
 				try {
-					return new Trip(trip.name, points);
+					return new Trip(trip.name, timestamps, latitudes,
+							longitudes, 0, padding + p);
 				} catch (ProjectSpecificException exception) {
 					throw new RuntimeException(exception);
 				}
@@ -116,25 +130,17 @@ class PredictionEvaluator {
 				+ route.busStops.get(upToNumber).name + " for " + trip.name);
 	}
 
-	static void removeTrip(ArrayList<Trip> trips, int removeIndex) {
-		trips.set(removeIndex, trips.get(trips.size() - 1));
-		trips.remove(trips.size() - 1);
-	}
-
-	static void addTripBack(ArrayList<Trip> trips, Trip trip, int setIndex) {
-		if (setIndex == trips.size()) {
-			trips.add(trip);
-		} else {
-			trips.add(trips.get(setIndex));
-			trips.set(setIndex, trip);
-		}
+	static long lastStopTimestamp(Route route, Trip trip)
+			throws ProjectSpecificException {
+		return lastStopTimestamp(route, trip, route.stopsAt(trip));
 	}
 
-	static long lastStopTimestamp(Route route, Trip trip)
+	static long lastStopTimestamp(Route route, Trip trip, int[] stopsAtPoints)
 			throws ProjectSpecificException {
-		for (GpsPoint point : trip.gpsPoints) {
-			if (route.atLastStop(point)) {
-				return point.timestamp;
+		int lastStop = route.busStops.size() - 1;
+		for (int p = 0; p < trip.size(); p++) {
+			if (route.atStop(stopsAtPoints, lastStop, trip, p)) {
+				return trip.timestamp(p);
 			}
 		}
 		throw new ProjectSpecificException(
@@ -149,6 +155,11 @@ class PredictionEvaluator {
 				+ trips.size() + " trips.");
 		Utils.writeLine(writer, "Will evaluate for route " + route.name
 				+ " using " + trips.size() + " trips.");
+		/* Stops at each trip's points are shared by all evaluated stops */
+		ArrayList<int[]> stopsAtPoints = new ArrayList<int[]>();
+		for (Trip trip : trips) {
+			stopsAtPoints.add(route.stopsAt(trip));
+		}
 
 		for (int stop = 0; stop < route.busStops.size() - 1; stop++) {
 			System.out.println("Evaluating for stop nr. " + stop);
@@ -159,7 +170,7 @@ class PredictionEvaluator {
 						"not enough trips, have only " + trips.size());
 				Utils.writeLine(writer, "");
 			} else {
-				evaluateRoute(route, trips, stop, writer);
+				evaluateRoute(route, trips, stopsAtPoints, stop, writer);
 			}
 		}
 
@@ -170,29 +181,42 @@ class PredictionEvaluator {
 	/* Computes various statistics for the arrival time to the last stop */
 	public static void evaluateRoute(Route route, ArrayList<Trip> trips,
 			int stop, BufferedWriter writer) throws ProjectSpecificException {
-		ArrayList<Trip> shortTrips = new ArrayList<Trip>();
+		ArrayList<int[]> stopsAtPoints = new ArrayList<int[]>();
 		for (Trip trip : trips) {
-			shortTrips.add(upToStop(stop, trip, route));
+			stopsAtPoints.add(route.stopsAt(trip));
+		}
+		evaluateRoute(route, trips, stopsAtPoints, stop, writer);
+	}
+
+	/*
+	 * Same as above, where stopsAtPoints.get(t) are route.stopsAt(trips.get(t)).
+	 * Each trip is predicted from all the other trips.
+	 */
+	static void evaluateRoute(Route route, ArrayList<Trip> trips,
+			ArrayList<int[]> stopsAtPoints, int stop, BufferedWriter writer)
+			throws ProjectSpecificException {
+		ArrayList<Trip> shortTrips = new ArrayList<Trip>();
+		for (int t = 0; t < trips.size(); t++) {
+			shortTrips.add(upToStop(stop, trips.get(t), route,
+					stopsAtPoints.get(t)));
 		}
 
+		RouteHistory history = new RouteHistory(route, trips);
 		long difference = 0;
 		long delaysSum = 0;
 		for (int t = trips.size() - 1; t >= 0; t--) {
 			Trip trip = trips.get(t);
-			removeTrip(trips, t);
 
 			long predictedTimestamp = ArrivalTimePredictor.makePrediction(
-					route.lastStop(), shortTrips.get(t),
-					trips).predictedTimestamp;
+					history, route.busStops.size() - 1, shortTrips.get(t),
+					t).predictedTimestamp;
 			long actualTimestamp = PredictionEvaluator.lastStopTimestamp(route,
-					trip);
+					trip, stopsAtPoints.get(t));
 			long predictionError = Math
 					.abs(actualTimestamp - predictedTimestamp);
 			difference += predictionError;
 			delaysSum += actualTimestamp
-					- shortTrips.get(t).lastPoint().timestamp;
-
-			addTripBack(trips, trip, t);
+					- shortTrips.get(t).lastTimestamp();
 		}
 
 		Utils.writeLine(writer, "MAE = " + difference / trips.size());
@@ -14,6 +14,9 @@ class Route {
 	final String name;
 	final ArrayList<BusStop> busStops;
 
+	/* Built on first use, after all bus stops have been added */
+	private volatile StopIndex stopIndex;
+
 	Route(String name, ArrayList<BusStop> busStops) {
 		this.name = name;
 		this.busStops = busStops;
@@ -80,16 +83,51 @@ class Route {
 		return lastStop().atStop(point);
 	}
 
+	StopIndex stopIndex() {
+		StopIndex index = stopIndex;
+		if (index == null) {
+			index = new StopIndex(busStops);
+			stopIndex = index;
+		}
+		return index;
+	}
+
+	/* For each trip's point, the smallest index of a stop it is at or -1 */
+	int[] stopsAt(Trip trip) {
+		return stopIndex().stopsAt(trip);
+	}
+
+	/*
+	 * Whether trip's point is at stopIndex-th stop, where stopsAtPoints are
+	 * stopsAt(trip). A point can be at several stops only if the stops are
+	 * close to each other, in which case the stop is checked directly.
+	 */
+	boolean atStop(int[] stopsAtPoints, int stopIndex, Trip trip,
+			int point) {
+		int firstStop = stopsAtPoints[point];
+		if (firstStop == stopIndex) {
+			return true;
+		}
+		if (firstStop < 0 || firstStop > stopIndex) {
+			return false;
+		}
+		return busStops.get(stopIndex).atStop(trip, point);
+	}
+
 	boolean allStopsVisitedInOrder(Trip trip) {
+		return allStopsVisitedInOrder(trip, stopsAt(trip));
+	}
+
+	boolean allStopsVisitedInOrder(Trip trip, int[] stopsAtPoints) {
 		int point = 0;
-		for (BusStop busStop : busStops) {
-			while (point < trip.gpsPoints.size()) {
-				if (busStop.atStop(trip.gpsPoints.get(point))) {
+		for (int stop = 0; stop < busStops.size(); stop++) {
+			while (point < trip.size()) {
+				if (atStop(stopsAtPoints, stop, trip, point)) {
 					break;
 				}
 				point++;
 			}
 		}
-		return point < trip.gpsPoints.size();
+		return point < trip.size();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,241 @@
+package bus;
+
+import java.time.DayOfWeek;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Historical trips of a route, together with the time each trip first reached
+ * each of the route's stops. The times are found once when the history is
+ * created, so the time from any point of a historical trip to any stop is a
+ * subtraction instead of a scan over the trip's points.
+ *
+ * Trips are also put into buckets by the times of day they were on the road
+ * (BUCKET_MINUTES long) and by the type of the day (weekday, Saturday or
+ * Sunday), so that a prediction can use at most MAX_CANDIDATES trips that ran
+ * at a similar time instead of the whole history. Both values can be changed
+ * with -Dbus.candidateBucketMinutes=... and -Dbus.maxCandidates=...
+ */
+class RouteHistory {
+	/* Marks a stop the trip was never at */
+	static final long NOT_ARRIVED = Long.MIN_VALUE;
+
+	static final int BUCKET_MINUTES = Integer
+			.getInteger("bus.candidateBucketMinutes", 30);
+	static final int MAX_CANDIDATES = Integer.getInteger("bus.maxCandidates",
+			200);
+	private static final int BUCKET_SECONDS = 60 * BUCKET_MINUTES;
+	private static final int BUCKETS_IN_DAY = (24 * 3600 + BUCKET_SECONDS - 1)
+			/ BUCKET_SECONDS;
+	private static final int DAY_TYPES = 3;
+	/*
+	 * Trips of another day type are taken as if they ran this many buckets
+	 * (2 hours) further in time.
+	 */
+	private static final int OTHER_DAY_TYPE_PENALTY = Math.max(1,
+			2 * 3600 / BUCKET_SECONDS);
+
+	final Route route;
+	/* Must not be modified */
+	final ArrayList<Trip> trips;
+	/*
+	 * arrivalTimestamps[t][s] is the timestamp of the first point of the t-th
+	 * trip that is at the s-th stop.
+	 */
+	private final long[][] arrivalTimestamps;
+	/*
+	 * tripsInBucket[dayType][bucket] are the indices (in increasing order) of
+	 * the trips having a point in the bucket.
+	 */
+	private final int[][][] tripsInBucket;
+	/* 0, 1, ..., size() - 1 */
+	private final int[] allTrips;
+
+	RouteHistory(Route route, ArrayList<Trip> trips) {
+		this.route = route;
+		this.trips = trips;
+		this.arrivalTimestamps = new long[trips.size()][];
+
+		StopIndex stopIndex = route.stopIndex();
+		for (int t = 0; t < trips.size(); t++) {
+			Trip trip = trips.get(t);
+			long[] arrivals = new long[route.busStops.size()];
+			Arrays.fill(arrivals, NOT_ARRIVED);
+			for (int p = trip.size() - 1; p >= 0; p--) {
+				/* Going backwards leaves the first point at each stop */
+				int stop = stopIndex.nextStopAt(trip, p, 0);
+				while (stop >= 0) {
+					arrivals[stop] = trip.timestamp(p);
+					stop = stopIndex.nextStopAt(trip, p, stop + 1);
+				}
+			}
+			arrivalTimestamps[t] = arrivals;
+		}
+
+		allTrips = new int[trips.size()];
+		for (int t = 0; t < trips.size(); t++) {
+			allTrips[t] = t;
+		}
+		tripsInBucket = bucketTrips(trips);
+	}
+
+	private static int[][][] bucketTrips(ArrayList<Trip> trips) {
+		int[][] counts = new int[DAY_TYPES][BUCKETS_IN_DAY];
+		int[][] lastAdded = new int[DAY_TYPES][BUCKETS_IN_DAY];
+		for (int[] row : lastAdded) {
+			Arrays.fill(row, -1);
+		}
+		int[][][] tripsInBucket = new int[DAY_TYPES][BUCKETS_IN_DAY][];
+		/* First pass counts the trips of each bucket, second one adds them */
+		for (int pass = 0; pass < 2; pass++) {
+			for (int t = 0; t < trips.size(); t++) {
+				Trip trip = trips.get(t);
+				long from = trip.timestamp(0);
+				/* Long trips are capped at a day, they visit every bucket */
+				long to = Math.min(trip.lastTimestamp(), from + 24 * 3600);
+				for (long timestamp = from; timestamp < to
+						+ BUCKET_SECONDS; timestamp += BUCKET_SECONDS) {
+					long moment = Math.min(timestamp, to);
+					int dayType = dayType(moment);
+					int bucket = bucket(moment);
+					if (lastAdded[dayType][bucket] == t) {
+						continue;
+					}
+					lastAdded[dayType][bucket] = t;
+					if (pass == 0) {
+						counts[dayType][bucket]++;
+					} else {
+						int[] bucketTrips = tripsInBucket[dayType][bucket];
+						bucketTrips[bucketTrips.length
+								- counts[dayType][bucket]--] = t;
+					}
+				}
+			}
+			if (pass == 0) {
+				for (int dayType = 0; dayType < DAY_TYPES; dayType++) {
+					Arrays.fill(lastAdded[dayType], -1);
+					for (int bucket = 0; bucket < BUCKETS_IN_DAY; bucket++) {
+						tripsInBucket[dayType][bucket] = new int[counts[dayType][bucket]];
+					}
+				}
+			}
+		}
+		return tripsInBucket;
+	}
+
+	private static int dayType(long timestamp) {
+		DayOfWeek day = TimestampCodec.dayOfWeek(timestamp);
+		if (day == DayOfWeek.SATURDAY) {
+			return 1;
+		}
+		if (day == DayOfWeek.SUNDAY) {
+			return 2;
+		}
+		return 0;
+	}
+
+	private static int bucket(long timestamp) {
+		return TimestampCodec.secondOfDay(timestamp) / BUCKET_SECONDS;
+	}
+
+	/*
+	 * Indices (in increasing order) of at most MAX_CANDIDATES trips which were
+	 * on the road at the most similar times of day to the timestamp. Buckets
+	 * are taken in rings of growing distance from the timestamp's bucket
+	 * (trips of other day types being OTHER_DAY_TYPE_PENALTY buckets further),
+	 * until there are enough trips. Histories with at most MAX_CANDIDATES
+	 * trips return all of them.
+	 */
+	int[] candidates(long timestamp) {
+		if (trips.size() <= MAX_CANDIDATES) {
+			return allTrips;
+		}
+		int dayType = dayType(timestamp);
+		int bucket = bucket(timestamp);
+		int[] chosen = new int[0];
+		int[] ring = new int[16];
+		for (int distance = 0; distance <= BUCKETS_IN_DAY / 2
+				+ OTHER_DAY_TYPE_PENALTY
+				&& chosen.length < MAX_CANDIDATES; distance++) {
+			int ringSize = 0;
+			for (int type = 0; type < DAY_TYPES; type++) {
+				int timeDistance = distance
+						- (type == dayType ? 0 : OTHER_DAY_TYPE_PENALTY);
+				if (timeDistance < 0 || timeDistance > BUCKETS_IN_DAY / 2) {
+					continue;
+				}
+				int later = (bucket + timeDistance) % BUCKETS_IN_DAY;
+				int earlier = (bucket - timeDistance + BUCKETS_IN_DAY)
+						% BUCKETS_IN_DAY;
+				for (int b : later == earlier ? new int[] { later }
+						: new int[] { later, earlier }) {
+					int[] bucketTrips = tripsInBucket[type][b];
+					if (ringSize + bucketTrips.length > ring.length) {
+						ring = Arrays.copyOf(ring, Math.max(2 * ring.length,
+								ringSize + bucketTrips.length));
+					}
+					System.arraycopy(bucketTrips, 0, ring, ringSize,
+							bucketTrips.length);
+					ringSize += bucketTrips.length;
+				}
+			}
+			chosen = addNew(chosen, ring, ringSize);
+		}
+		return chosen;
+	}
+
+	/*
+	 * candidates(timestamp) depends on nothing else about the timestamp than
+	 * this key, so timestamps of equal keys have equal candidates.
+	 */
+	int candidatesKey(long timestamp) {
+		if (trips.size() <= MAX_CANDIDATES) {
+			return 0;
+		}
+		return dayType(timestamp) * BUCKETS_IN_DAY + bucket(timestamp);
+	}
+
+	/*
+	 * Adds trips of the ring not chosen yet (the earlier ones first) to the
+	 * chosen ones, up to MAX_CANDIDATES trips in total.
+	 */
+	private static int[] addNew(int[] chosen, int[] ring, int ringSize) {
+		Arrays.sort(ring, 0, ringSize);
+		int[] added = new int[ringSize];
+		int addedSize = 0;
+		for (int i = 0; i < ringSize
+				&& chosen.length + addedSize < MAX_CANDIDATES; i++) {
+			if ((i == 0 || ring[i] != ring[i - 1])
+					&& Arrays.binarySearch(chosen, ring[i]) < 0) {
+				added[addedSize++] = ring[i];
+			}
+		}
+		if (addedSize == 0) {
+			return chosen;
+		}
+		int[] merged = Arrays.copyOf(chosen, chosen.length + addedSize);
+		System.arraycopy(added, 0, merged, chosen.length, addedSize);
+		Arrays.sort(merged);
+		return merged;
+	}
+
+	int size() {
+		return trips.size();
+	}
+
+	/* NOT_ARRIVED if the trip was never at the stop */
+	long arrivalTimestamp(int trip, int stop) {
+		return arrivalTimestamps[trip][stop];
+	}
+
+	/* Seconds the trip took from its point-th point until reaching the stop */
+	long timeToStop(int trip, int point, int stop)
+			throws ProjectSpecificException {
+		long arrival = arrivalTimestamps[trip][stop];
+		if (arrival == NOT_ARRIVED) {
+			throw ProjectSpecificException
+					.historicalTripMissingImportantPoints(trips.get(trip).name);
+		}
+		return arrival - trips.get(trip).timestamp(point);
+	}
+}
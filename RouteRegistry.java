@@ -0,0 +1,58 @@
+package bus;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/*
+ * Every route together with its path, loaded once when the program starts.
+ * A path file and the route file of the same name describe the same route:
+ * the path is the geometry buses drive along, the route its stops.
+ *
+ * Routes are identified by their id, which is the index of the route in the
+ * registry. Stop indices of routes and distance caches of paths are built
+ * while loading, and nothing is modified afterwards, so all threads can share
+ * the registry without locking.
+ */
+class RouteRegistry {
+	/* A route and its path */
+	static class Entry {
+		final int id;
+		final Route route;
+		final Trip path;
+
+		private Entry(int id, Route route, Trip path) {
+			this.id = id;
+			this.route = route;
+			this.path = path;
+		}
+	}
+
+	private final Entry[] entries;
+
+	/* Paths without a route file of the same name are skipped */
+	RouteRegistry(File routesFolder, File pathsFolder) {
+		ArrayList<Entry> loaded = new ArrayList<Entry>();
+		for (Trip path : Trip.readFromFolder(pathsFolder)) {
+			File routeFile = new File(routesFolder, path.name);
+			if (!routeFile.isFile()) {
+				System.out.println("Path " + path.name
+						+ " has no route, skipping it");
+				continue;
+			}
+			Route route = new Route(routeFile);
+			route.stopIndex();
+			path.precompute();
+
+			loaded.add(new Entry(loaded.size(), route, path));
+		}
+		this.entries = loaded.toArray(new Entry[0]);
+	}
+
+	int size() {
+		return entries.length;
+	}
+
+	Entry entry(int id) {
+		return entries[id];
+	}
+}
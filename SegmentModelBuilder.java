@@ -0,0 +1,106 @@
+package bus;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/*
+ * Compiles historical trips of each route into a segment model: for each pair
+ * of consecutive stops and each time of day bucket, the number of trips that
+ * travelled between the stops and the 10th percentile, median and 90th
+ * percentile of their travel times. SegmentModelPredictor answers arrival
+ * time queries from the model without looking at any trip.
+ *
+ * Trips are bucketed by the time they left the first stop of the pair, in
+ * RouteHistory.BUCKET_MINUTES long buckets.
+ *
+ * Example model file (segment "stop" is from stop - 1 to stop):
+ *
+ * bucket_minutes,30
+ * bucket,stop,count,lower,median,upper
+ * 16,1,42,95,120,180
+ * 16,2,40,60,64,91
+ *
+ * Usage:
+ * java bus.SegmentModelBuilder historical_data_folder routes_folder
+ * models_folder
+ */
+class SegmentModelBuilder {
+
+	public static void main(String[] args) throws ProjectSpecificException {
+		Utils.checkCommandLineArguments(args, "folder", "folder", "folder");
+		File historicalDataFolder = new File(args[0]);
+		File modelsFolder = new File(args[2]);
+
+		for (Route route : Route.extractRoutesFromFolder(new File(args[1]))) {
+			File tripsFolder = new File(historicalDataFolder, route.name);
+			if (!tripsFolder.isDirectory()) {
+				continue;
+			}
+			RouteHistory history = new RouteHistory(route,
+					Trip.readFromFolder(tripsFolder));
+			writeModel(history, new File(modelsFolder, route.name));
+			System.out.println("Built the segment model of " + route.name
+					+ " from " + history.size() + " trips.");
+		}
+	}
+
+	static void writeModel(RouteHistory history, File modelFile)
+			throws ProjectSpecificException {
+		int bucketSeconds = 60 * RouteHistory.BUCKET_MINUTES;
+		int buckets = (24 * 3600 + bucketSeconds - 1) / bucketSeconds;
+		int stops = history.route.busStops.size();
+
+		/* travelTimes.get(bucket * stops + stop) for the segment ending at stop */
+		ArrayList<ArrayList<Long>> travelTimes = new ArrayList<ArrayList<Long>>();
+		for (int i = 0; i < buckets * stops; i++) {
+			travelTimes.add(new ArrayList<Long>());
+		}
+		for (int t = 0; t < history.size(); t++) {
+			for (int stop = 1; stop < stops; stop++) {
+				long departure = history.arrivalTimestamp(t, stop - 1);
+				long arrival = history.arrivalTimestamp(t, stop);
+				if (departure == RouteHistory.NOT_ARRIVED
+						|| arrival == RouteHistory.NOT_ARRIVED
+						|| arrival < departure) {
+					continue;
+				}
+				int bucket = TimestampCodec.secondOfDay(departure)
+						/ bucketSeconds;
+				travelTimes.get(bucket * stops + stop).add(arrival - departure);
+			}
+		}
+
+		try {
+			BufferedWriter writer = new BufferedWriter(
+					new FileWriter(modelFile));
+			Utils.writeLine(writer,
+					"bucket_minutes," + RouteHistory.BUCKET_MINUTES);
+			Utils.writeLine(writer, "bucket,stop,count,lower,median,upper");
+			for (int bucket = 0; bucket < buckets; bucket++) {
+				for (int stop = 1; stop < stops; stop++) {
+					ArrayList<Long> times = travelTimes
+							.get(bucket * stops + stop);
+					if (times.isEmpty()) {
+						continue;
+					}
+					PredictionAggregator aggregator = PredictionAggregator
+							.start();
+					for (int i = 0; i < times.size(); i++) {
+						aggregator.add(times.get(i), i);
+					}
+					aggregator.aggregate();
+					Utils.writeLine(writer, bucket + "," + stop + ","
+							+ times.size() + "," + aggregator.lowerTimestamp()
+							+ "," + aggregator.median() + ","
+							+ aggregator.upperTimestamp());
+				}
+			}
+			writer.close();
+		} catch (IOException exception) {
+			throw new RuntimeException(exception);
+		}
+	}
+}
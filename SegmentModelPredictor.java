@@ -0,0 +1,134 @@
+package bus;
+
+import java.io.File;
+import java.util.Scanner;
+
+/*
+ * Predicts arrival times from a route's segment model (see
+ * SegmentModelBuilder) instead of from historical trips. Travel times of the
+ * segments are summed up once when the model is loaded, so the time between
+ * any two stops is a subtraction.
+ *
+ * The whole remaining journey is predicted with the travel times of the
+ * bucket the bus is in now. Segments without any trip in that bucket take
+ * travel times from the nearest bucket having some. Lower and upper bounds
+ * are sums of the segments' percentiles, hence wider than the percentiles of
+ * whole journeys would be.
+ */
+class SegmentModelPredictor {
+	final Route route;
+	private final int bucketSeconds;
+	/*
+	 * cumulativeMedians[bucket][stop] is the sum of median travel times of the
+	 * segments from the first stop until the stop, similarly for the bounds.
+	 */
+	private final long[][] cumulativeMedians;
+	private final long[][] cumulativeLowers;
+	private final long[][] cumulativeUppers;
+
+	SegmentModelPredictor(Route route, File modelFile)
+			throws ProjectSpecificException {
+		this.route = route;
+		int stops = route.busStops.size();
+
+		Scanner scanner = Utils.csvScanner(modelFile);
+		/* Skipping bucket_minutes */
+		scanner.next();
+		bucketSeconds = 60 * scanner.nextInt();
+		scanner.nextLine();
+		/* Skipping bucket,stop,count,lower,median,upper */
+		scanner.nextLine();
+
+		int buckets = (24 * 3600 + bucketSeconds - 1) / bucketSeconds;
+		long[][] medians = new long[buckets][stops];
+		long[][] lowers = new long[buckets][stops];
+		long[][] uppers = new long[buckets][stops];
+		boolean[][] known = new boolean[buckets][stops];
+		while (scanner.hasNext()) {
+			int bucket = scanner.nextInt();
+			int stop = scanner.nextInt();
+			/* Skipping count */
+			scanner.nextInt();
+			if (bucket < 0 || bucket >= buckets || stop <= 0
+					|| stop >= stops) {
+				scanner.close();
+				throw new ProjectSpecificException(modelFile.getName()
+						+ " does not match the route " + route.name);
+			}
+			lowers[bucket][stop] = scanner.nextLong();
+			medians[bucket][stop] = scanner.nextLong();
+			uppers[bucket][stop] = scanner.nextLong();
+			known[bucket][stop] = true;
+		}
+		scanner.close();
+
+		cumulativeMedians = new long[buckets][stops];
+		cumulativeLowers = new long[buckets][stops];
+		cumulativeUppers = new long[buckets][stops];
+		for (int bucket = 0; bucket < buckets; bucket++) {
+			for (int stop = 1; stop < stops; stop++) {
+				int from = nearestKnownBucket(known, bucket, stop);
+				if (from < 0) {
+					throw new ProjectSpecificException(modelFile.getName()
+							+ " has no travel times to stop " + stop);
+				}
+				cumulativeMedians[bucket][stop] = cumulativeMedians[bucket][stop
+						- 1] + medians[from][stop];
+				cumulativeLowers[bucket][stop] = cumulativeLowers[bucket][stop
+						- 1] + lowers[from][stop];
+				cumulativeUppers[bucket][stop] = cumulativeUppers[bucket][stop
+						- 1] + uppers[from][stop];
+			}
+		}
+	}
+
+	/* Returns null if there is no model of the route in the folder */
+	static SegmentModelPredictor forRoute(Route route, File modelsFolder)
+			throws ProjectSpecificException {
+		File modelFile = new File(modelsFolder, route.name);
+		if (!modelFile.isFile()) {
+			return null;
+		}
+		return new SegmentModelPredictor(route, modelFile);
+	}
+
+	private static int nearestKnownBucket(boolean[][] known, int bucket,
+			int stop) {
+		int buckets = known.length;
+		for (int distance = 0; distance <= buckets / 2; distance++) {
+			if (known[(bucket + distance) % buckets][stop]) {
+				return (bucket + distance) % buckets;
+			}
+			if (known[(bucket - distance + buckets) % buckets][stop]) {
+				return (bucket - distance + buckets) % buckets;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Predicts arrival times to the stops fromStop, fromStop + 1, ..., toStop
+	 * of a bus being at the atStop-th stop at the timestamp, the s-th stop's
+	 * prediction being at index s - fromStop. Each stop takes O(1).
+	 */
+	Prediction[] makePredictions(int atStop, long timestamp, int fromStop,
+			int toStop) {
+		int bucket = TimestampCodec.secondOfDay(timestamp) / bucketSeconds;
+		Prediction[] predictions = new Prediction[Math.max(0,
+				toStop - fromStop + 1)];
+		for (int stop = fromStop; stop <= toStop; stop++) {
+			Prediction prediction = new Prediction(timestamp
+					+ cumulativeMedians[bucket][stop]
+					- cumulativeMedians[bucket][atStop]);
+			prediction.lowerTimestamp = timestamp
+					+ cumulativeLowers[bucket][stop]
+					- cumulativeLowers[bucket][atStop];
+			prediction.upperTimestamp = timestamp
+					+ cumulativeUppers[bucket][stop]
+					- cumulativeUppers[bucket][atStop];
+			prediction.name = "segment model of " + route.name;
+			predictions[stop - fromStop] = prediction;
+		}
+		return predictions;
+	}
+}
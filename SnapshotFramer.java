@@ -0,0 +1,133 @@
+package bus;
+
+import java.util.Arrays;
+
+/*
+ * Splits a stream of JSON snapshots (e.g. read from a socket) into the
+ * snapshots. A snapshot is any top level JSON array or object, so both an
+ * array of vehicle entries and a single vehicle entry are one snapshot.
+ * Brackets inside strings are ignored, anything between snapshots is
+ * skipped.
+ *
+ * A snapshot longer than maxSnapshotBytes is taken as garbage. It is still
+ * scanned to its closing bracket, so that what follows it is framed as
+ * usual, but its bytes are not kept and it is only counted (see
+ * takeDroppedSnapshots).
+ *
+ * Usage:
+ * SnapshotFramer framer = new SnapshotFramer();
+ * framer.append(bytesRead, 0, length);
+ * while (framer.next()) {
+ *     ... framer.bytes()[framer.start(), framer.end()) ...
+ * }
+ *
+ * The snapshot found by next() is valid until the following append().
+ */
+class SnapshotFramer {
+	static final int MAX_SNAPSHOT_BYTES = 64 << 20;
+
+	private final int maxSnapshotBytes;
+	private byte[] buffer = new byte[1 << 16];
+	private int size;
+	/* buffer[0, scanned) has been scanned */
+	private int scanned;
+
+	/* State of the scan at buffer[scanned] */
+	private int depth;
+	private boolean inString;
+	private boolean escaped;
+	/*
+	 * Start of the snapshot being scanned, -1 if between snapshots or if the
+	 * snapshot is being dropped (depth > 0)
+	 */
+	private int snapshotStart = -1;
+	private int droppedSnapshots;
+
+	/* The snapshot found by next() */
+	private int start;
+	private int end;
+
+	SnapshotFramer() {
+		this(MAX_SNAPSHOT_BYTES);
+	}
+
+	SnapshotFramer(int maxSnapshotBytes) {
+		this.maxSnapshotBytes = maxSnapshotBytes;
+	}
+
+	void append(byte[] bytes, int from, int length) {
+		/* Bytes of returned or dropped snapshots are not needed any more */
+		int kept = snapshotStart >= 0 ? snapshotStart : scanned;
+		System.arraycopy(buffer, kept, buffer, 0, size - kept);
+		size -= kept;
+		scanned -= kept;
+		if (snapshotStart >= 0) {
+			snapshotStart -= kept;
+		}
+
+		if (size + length > buffer.length) {
+			buffer = Arrays.copyOf(buffer,
+					Math.max(2 * buffer.length, size + length));
+		}
+		System.arraycopy(bytes, from, buffer, size, length);
+		size += length;
+	}
+
+	/* Moves to the next complete snapshot, returns false if there is none */
+	boolean next() {
+		while (scanned < size) {
+			if (snapshotStart >= 0
+					&& scanned - snapshotStart >= maxSnapshotBytes) {
+				/* Too long, the rest of it is scanned but not kept */
+				snapshotStart = -1;
+			}
+			byte character = buffer[scanned++];
+			if (inString) {
+				if (escaped) {
+					escaped = false;
+				} else if (character == '\\') {
+					escaped = true;
+				} else if (character == '"') {
+					inString = false;
+				}
+			} else if (character == '"') {
+				inString = depth > 0;
+			} else if (character == '{' || character == '[') {
+				if (depth++ == 0) {
+					snapshotStart = scanned - 1;
+				}
+			} else if ((character == '}' || character == ']') && depth > 0) {
+				if (--depth == 0) {
+					if (snapshotStart < 0) {
+						droppedSnapshots++;
+						continue;
+					}
+					start = snapshotStart;
+					end = scanned;
+					snapshotStart = -1;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/* Number of snapshots dropped since the previous call */
+	int takeDroppedSnapshots() {
+		int dropped = droppedSnapshots;
+		droppedSnapshots = 0;
+		return dropped;
+	}
+
+	byte[] bytes() {
+		return buffer;
+	}
+
+	int start() {
+		return start;
+	}
+
+	int end() {
+		return end;
+	}
+}
@@ -0,0 +1,308 @@
+package bus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * Parser of real time JSON snapshots (format is described at
+ * BusTravelHistoryExtractor class). It scans the snapshot's bytes once and
+ * extracts fields of each vehicle entry straight into primitive fields, so no
+ * String or regex Matcher is created per entry. Line breaks are treated as any
+ * other byte, hence the snapshot does not have to be on a single line.
+ *
+ * Usage:
+ * SnapshotParser parser = SnapshotParser.ofFile(file);
+ * while (parser.next()) {
+ *     ... parser.vehicleId, parser.timestamp, parser.latitude ...
+ * }
+ *
+ * An entry is everything from '{' until the next '}'. Entries missing any of
+ * vehicle_id, timestamp, latitude or longitude are skipped.
+ */
+class SnapshotParser {
+	private static final byte[] VEHICLE_ID = bytes("vehicle_id");
+	private static final byte[] TIMESTAMP = bytes("timestamp");
+	private static final byte[] LATITUDE = bytes("latitude");
+	private static final byte[] LONGITUDE = bytes("longitude");
+	private static final byte[] BEARING = bytes("bearing");
+	private static final byte[] TRIP_ID = bytes("trip_id");
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	/* Longs with at most 15 digits convert to double exactly */
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	private final byte[] bytes;
+	private final int end;
+	private int position;
+
+	/* Fields of the current entry, valid after next() returned true */
+	int vehicleId;
+	long timestamp;
+	double latitude;
+	double longitude;
+	/* Double.NaN if the entry has no bearing */
+	double bearing;
+	/* trip_id is bytes[tripIdStart, tripIdStart + tripIdLength), -1 if none */
+	int tripIdStart;
+	int tripIdLength;
+
+	/* Fields found so far in the entry being parsed */
+	private boolean hasVehicleId;
+	private boolean hasTimestamp;
+	private boolean hasLatitude;
+	private boolean hasLongitude;
+
+	SnapshotParser(byte[] bytes, int from, int to) {
+		this.bytes = bytes;
+		this.position = from;
+		this.end = to;
+	}
+
+	static SnapshotParser ofFile(File file) {
+		try {
+			byte[] content = Files.readAllBytes(file.toPath());
+			return new SnapshotParser(content, 0, content.length);
+		} catch (IOException exception) {
+			throw new RuntimeException(exception);
+		}
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/* Moves to the next complete entry, returns false if there is none */
+	boolean next() {
+		while (true) {
+			while (position < end && bytes[position] != '{') {
+				position++;
+			}
+			if (position >= end) {
+				return false;
+			}
+			int entryStart = position + 1;
+			int entryEnd = entryStart;
+			while (entryEnd < end && bytes[entryEnd] != '}') {
+				entryEnd++;
+			}
+			position = entryEnd;
+
+			if (parseEntry(entryStart, entryEnd)) {
+				return true;
+			}
+		}
+	}
+
+	/* Only allocates for the rarely used tripId */
+	String tripId() {
+		if (tripIdStart < 0) {
+			return null;
+		}
+		return new String(bytes, tripIdStart, tripIdLength,
+				StandardCharsets.US_ASCII);
+	}
+
+	/*
+	 * Every ':' in the entry is checked for being preceded by "key" of
+	 * interest, in which case the value following ':' is parsed.
+	 */
+	private boolean parseEntry(int from, int to) {
+		hasVehicleId = false;
+		hasTimestamp = false;
+		hasLatitude = false;
+		hasLongitude = false;
+		bearing = Double.NaN;
+		tripIdStart = -1;
+		tripIdLength = 0;
+
+		for (int colon = from; colon < to; colon++) {
+			if (bytes[colon] != ':') {
+				continue;
+			}
+			int keyEnd = skipWhitespaceBackwards(from, colon - 1);
+			if (keyEnd < from || bytes[keyEnd] != '"') {
+				continue;
+			}
+			int valueStart = skipWhitespace(colon + 1, to);
+			if (precededByKey(from, keyEnd, VEHICLE_ID)) {
+				hasVehicleId = parseVehicleId(valueStart, to);
+			} else if (precededByKey(from, keyEnd, TIMESTAMP)) {
+				hasTimestamp = parseTimestamp(valueStart, to);
+			} else if (precededByKey(from, keyEnd, LATITUDE)) {
+				latitude = parseNumber(valueStart, to);
+				hasLatitude = !Double.isNaN(latitude);
+			} else if (precededByKey(from, keyEnd, LONGITUDE)) {
+				longitude = parseNumber(valueStart, to);
+				hasLongitude = !Double.isNaN(longitude);
+			} else if (precededByKey(from, keyEnd, BEARING)) {
+				bearing = parseNumber(valueStart, to);
+			} else if (precededByKey(from, keyEnd, TRIP_ID)) {
+				parseTripId(valueStart, to);
+			}
+		}
+
+		return hasVehicleId && hasTimestamp && hasLatitude && hasLongitude;
+	}
+
+	/*
+	 * Whether bytes before closingQuote are '"' + key. Requiring the opening
+	 * quote makes sure "received_timestamp" is not taken for "timestamp".
+	 */
+	private boolean precededByKey(int from, int closingQuote, byte[] key) {
+		int keyStart = closingQuote - key.length;
+		if (keyStart - 1 < from || bytes[keyStart - 1] != '"') {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (bytes[keyStart + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int skipWhitespace(int from, int to) {
+		while (from < to && isWhitespace(bytes[from])) {
+			from++;
+		}
+		return from;
+	}
+
+	private int skipWhitespaceBackwards(int from, int index) {
+		while (index >= from && isWhitespace(bytes[index])) {
+			index--;
+		}
+		return index;
+	}
+
+	private static boolean isWhitespace(byte character) {
+		return character == ' ' || character == '\t' || character == '\n'
+				|| character == '\r';
+	}
+
+	/* vehicle_id is a quoted integer, e.g. "vehicle_id":"4" */
+	private boolean parseVehicleId(int from, int to) {
+		if (from < to && bytes[from] == '"') {
+			from++;
+		}
+		int digitsEnd = from;
+		long value = 0;
+		while (digitsEnd < to && bytes[digitsEnd] >= '0'
+				&& bytes[digitsEnd] <= '9') {
+			value = 10 * value + (bytes[digitsEnd] - '0');
+			digitsEnd++;
+		}
+		if (digitsEnd == from || value > Integer.MAX_VALUE) {
+			return false;
+		}
+		vehicleId = (int) value;
+		return true;
+	}
+
+	private boolean parseTimestamp(int from, int to) {
+		int digitsEnd = from;
+		long value = 0;
+		while (digitsEnd < to && bytes[digitsEnd] >= '0'
+				&& bytes[digitsEnd] <= '9') {
+			value = 10 * value + (bytes[digitsEnd] - '0');
+			digitsEnd++;
+		}
+		if (digitsEnd == from) {
+			return false;
+		}
+		timestamp = value;
+		return true;
+	}
+
+	private void parseTripId(int from, int to) {
+		int valueEnd;
+		if (from < to && bytes[from] == '"') {
+			from++;
+			valueEnd = from;
+			while (valueEnd < to && bytes[valueEnd] != '"') {
+				valueEnd++;
+			}
+		} else {
+			valueEnd = from;
+			while (valueEnd < to && bytes[valueEnd] != ','
+					&& !isWhitespace(bytes[valueEnd])) {
+				valueEnd++;
+			}
+		}
+		tripIdStart = from;
+		tripIdLength = valueEnd - from;
+	}
+
+	/*
+	 * Parses a decimal number, returns Double.NaN if there is none. Numbers
+	 * of up to 15 significant digits (all GPS coordinates) are computed as
+	 * digits / 10^fractionDigits, which is correctly rounded, hence equal to
+	 * what Double.parseDouble returns. Other numbers fall back to it.
+	 */
+	private double parseNumber(int from, int to) {
+		int index = from;
+		if (index < to && bytes[index] == '"') {
+			index++;
+		}
+		int numberStart = index;
+		boolean negative = false;
+		if (index < to && (bytes[index] == '-' || bytes[index] == '+')) {
+			negative = bytes[index] == '-';
+			index++;
+		}
+
+		long digits = 0;
+		boolean hasDigits = false;
+		int digitsCount = 0;
+		int fractionDigits = 0;
+		boolean afterPoint = false;
+		boolean simple = true;
+		for (; index < to; index++) {
+			byte character = bytes[index];
+			if (character >= '0' && character <= '9') {
+				hasDigits = true;
+				if (digitsCount > 0 || character != '0') {
+					digitsCount++;
+				}
+				if (digitsCount > MAX_EXACT_DIGITS) {
+					simple = false;
+				} else {
+					digits = 10 * digits + (character - '0');
+				}
+				if (afterPoint) {
+					fractionDigits++;
+				}
+			} else if (character == '.' && !afterPoint) {
+				afterPoint = true;
+			} else if (character == 'e' || character == 'E') {
+				simple = false;
+				index++;
+				while (index < to && (bytes[index] == '-' || bytes[index] == '+'
+						|| (bytes[index] >= '0' && bytes[index] <= '9'))) {
+					index++;
+				}
+				break;
+			} else {
+				break;
+			}
+		}
+
+		if (!hasDigits) {
+			return Double.NaN;
+		}
+		if (simple && fractionDigits < POWERS_OF_TEN.length) {
+			double value = digits / POWERS_OF_TEN[fractionDigits];
+			return negative ? -value : value;
+		}
+		try {
+			return Double.parseDouble(new String(bytes, numberStart,
+					index - numberStart, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException exception) {
+			return Double.NaN;
+		}
+	}
+}
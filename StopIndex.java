@@ -0,0 +1,146 @@
+package bus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Uniform grid over the bus stops of a route, answering which stop (if any) a
+ * GPS point is at without checking every stop of the route.
+ *
+ * Cells are at least Utils.SAME_PLACE_DISTANCE_RANGE high and wide, hence any
+ * stop a point is at lies in the point's cell or in one of the 8 neighbouring
+ * cells. Only stops from these cells are checked with BusStop.atStop, so the
+ * answers are exactly those of checking the stops one by one.
+ *
+ * NOTE: the grid is not wrapped around 180th meridian.
+ */
+class StopIndex {
+	/* Safety margin for rounding and for curvature of the earth */
+	private static final double CELL_MARGIN = 1.01;
+	private static final double MIN_COS_LATITUDE = 0.01;
+
+	private final ArrayList<BusStop> busStops;
+	/* Cell sizes in degrees */
+	private final double cellLatitude;
+	private final double cellLongitude;
+
+	/*
+	 * Open addressing hash table from a cell to the indices of the stops
+	 * in it, in increasing order. A slot is empty if its cellStops is null.
+	 */
+	private final long[] cellKeys;
+	private final int[][] cellStops;
+	private final int mask;
+
+	StopIndex(ArrayList<BusStop> busStops) {
+		this.busStops = busStops;
+
+		double rangeInDegrees = Utils.SAME_PLACE_DISTANCE_RANGE
+				/ Utils.SCALE_TO_RADIANS;
+		double maxAbsLatitude = 0.0;
+		for (BusStop busStop : busStops) {
+			maxAbsLatitude = Math.max(maxAbsLatitude,
+					Math.abs(busStop.latitude));
+		}
+		double minCosLatitude = Math.max(MIN_COS_LATITUDE, Math.cos(
+				(maxAbsLatitude + rangeInDegrees) * Utils.SCALE_TO_RADIANS));
+		cellLatitude = CELL_MARGIN * rangeInDegrees;
+		cellLongitude = CELL_MARGIN * rangeInDegrees / minCosLatitude;
+
+		int capacity = 4;
+		while (capacity < 2 * busStops.size()) {
+			capacity *= 2;
+		}
+		cellKeys = new long[capacity];
+		cellStops = new int[capacity][];
+		mask = capacity - 1;
+		for (int stop = 0; stop < busStops.size(); stop++) {
+			BusStop busStop = busStops.get(stop);
+			long key = cellKey(row(busStop.latitude),
+					column(busStop.longitude));
+			int slot = slot(key);
+			if (cellStops[slot] == null) {
+				cellKeys[slot] = key;
+				cellStops[slot] = new int[] { stop };
+			} else {
+				int[] stops = Arrays.copyOf(cellStops[slot],
+						cellStops[slot].length + 1);
+				stops[stops.length - 1] = stop;
+				cellStops[slot] = stops;
+			}
+		}
+	}
+
+	/* Smallest index >= fromStop of a stop the point is at, -1 if none */
+	int nextStopAt(GpsPoint point, int fromStop) {
+		return nextStopAt(point.latitude, point.longitude, fromStop, point,
+				null, 0);
+	}
+
+	/* Same as above, for trip's index-th point */
+	int nextStopAt(Trip trip, int index, int fromStop) {
+		return nextStopAt(trip.latitude(index), trip.longitude(index),
+				fromStop, null, trip, index);
+	}
+
+	/* For each trip's point, the smallest index of a stop it is at or -1 */
+	int[] stopsAt(Trip trip) {
+		int[] stops = new int[trip.size()];
+		for (int i = 0; i < trip.size(); i++) {
+			stops[i] = nextStopAt(trip, i, 0);
+		}
+		return stops;
+	}
+
+	/* Either point or trip with index is the point being checked */
+	private int nextStopAt(double latitude, double longitude, int fromStop,
+			GpsPoint point, Trip trip, int index) {
+		long row = row(latitude);
+		long column = column(longitude);
+		int best = -1;
+		for (long r = row - 1; r <= row + 1; r++) {
+			for (long c = column - 1; c <= column + 1; c++) {
+				int[] stops = cellStops[slot(cellKey(r, c))];
+				if (stops == null) {
+					continue;
+				}
+				for (int stop : stops) {
+					if (stop < fromStop) {
+						continue;
+					}
+					if (best >= 0 && stop >= best) {
+						break;
+					}
+					BusStop busStop = busStops.get(stop);
+					if (point != null ? busStop.atStop(point)
+							: busStop.atStop(trip, index)) {
+						best = stop;
+						break;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	private long row(double latitude) {
+		return (long) Math.floor(latitude / cellLatitude);
+	}
+
+	private long column(double longitude) {
+		return (long) Math.floor(longitude / cellLongitude);
+	}
+
+	private static long cellKey(long row, long column) {
+		return (row << 32) ^ (column & 0xffffffffL);
+	}
+
+	/* Slot holding the cell, or the empty slot where it would be stored */
+	private int slot(long key) {
+		int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+		while (cellStops[slot] != null && cellKeys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+}
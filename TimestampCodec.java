@@ -0,0 +1,226 @@
+package bus;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Date;
+
+/*
+ * Converts between timestamps (seconds since epoch) and dates of the form
+ * "yyyy-MM-dd HH:mm:ss" in the default time zone, exactly like
+ * SimpleDateFormat does, but without creating a SimpleDateFormat per call.
+ *
+ * The start of the most recently seen day is cached, so that converting any
+ * moment within that day is plain arithmetic. Only days of years
+ * FIRST_CACHED_YEAR to 9999 are cached. Days during which the UTC offset
+ * changes (daylight saving switches), days out of that range (e.g. before
+ * 1582-10-15, where SimpleDateFormat uses the Julian calendar and java.time
+ * the Gregorian one) and anything not of the exact "yyyy-MM-dd HH:mm:ss"
+ * form are handed to SimpleDateFormat. That the output is then identical to
+ * SimpleDateFormat's is checked by ArbitraryCodeExecutor.checkTimestampCodec.
+ * Cached days are immutable, so the codec is thread safe.
+ */
+class TimestampCodec {
+	static final String SIMPLE_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+	private static final int DATE_LENGTH = SIMPLE_DATE_FORMAT.length();
+	private static final long SECONDS_IN_DAY = 24 * 3600;
+	private static final long MILLISECONDS_IN_ONE_SECOND = 1000;
+	/* Time zone rules of java.time and SimpleDateFormat agree since then */
+	private static final int FIRST_CACHED_YEAR = 1970;
+	private static final int LAST_CACHED_YEAR = 9999;
+
+	/* A day during which the UTC offset does not change */
+	private static class Day {
+		final int year;
+		final int month;
+		final int dayOfMonth;
+		final DayOfWeek dayOfWeek;
+		final long startTimestamp;
+		/* "yyyy-MM-dd " */
+		final char[] prefix;
+
+		Day(LocalDate date, long startTimestamp) {
+			this.year = date.getYear();
+			this.month = date.getMonthValue();
+			this.dayOfMonth = date.getDayOfMonth();
+			this.dayOfWeek = date.getDayOfWeek();
+			this.startTimestamp = startTimestamp;
+			this.prefix = new char[11];
+			writeDigits(prefix, 0, year, 4);
+			prefix[4] = '-';
+			writeDigits(prefix, 5, month, 2);
+			prefix[7] = '-';
+			writeDigits(prefix, 8, dayOfMonth, 2);
+			prefix[10] = ' ';
+		}
+
+		boolean contains(long timestamp) {
+			return timestamp >= startTimestamp
+					&& timestamp < startTimestamp + SECONDS_IN_DAY;
+		}
+
+		boolean is(int year, int month, int dayOfMonth) {
+			return this.year == year && this.month == month
+					&& this.dayOfMonth == dayOfMonth;
+		}
+	}
+
+	private static volatile Day lastParsedDay;
+	private static volatile Day lastFormattedDay;
+
+	static long parse(String date) {
+		if (date.length() != DATE_LENGTH || !hasExpectedLayout(date)) {
+			return parseWithSimpleDateFormat(date);
+		}
+		int year = readDigits(date, 0, 4);
+		int month = readDigits(date, 5, 2);
+		int dayOfMonth = readDigits(date, 8, 2);
+		int hour = readDigits(date, 11, 2);
+		int minute = readDigits(date, 14, 2);
+		int second = readDigits(date, 17, 2);
+		if (year < FIRST_CACHED_YEAR || month < 1 || month > 12
+				|| dayOfMonth < 1
+				|| dayOfMonth > LocalDate.of(year, month, 1).lengthOfMonth()
+				|| hour > 23 || minute > 59 || second > 59) {
+			/* SimpleDateFormat is lenient and rolls such fields over */
+			return parseWithSimpleDateFormat(date);
+		}
+
+		Day day = lastParsedDay;
+		if (day == null || !day.is(year, month, dayOfMonth)) {
+			day = uniformDay(LocalDate.of(year, month, dayOfMonth));
+			if (day == null) {
+				return parseWithSimpleDateFormat(date);
+			}
+			lastParsedDay = day;
+		}
+		return day.startTimestamp + 3600 * hour + 60 * minute + second;
+	}
+
+	static String format(long timestamp) {
+		Day day = dayContaining(timestamp);
+		if (day == null) {
+			return formatWithSimpleDateFormat(timestamp);
+		}
+		int secondOfDay = (int) (timestamp - day.startTimestamp);
+		char[] date = new char[DATE_LENGTH];
+		System.arraycopy(day.prefix, 0, date, 0, day.prefix.length);
+		writeDigits(date, 11, secondOfDay / 3600, 2);
+		date[13] = ':';
+		writeDigits(date, 14, secondOfDay / 60 % 60, 2);
+		date[16] = ':';
+		writeDigits(date, 17, secondOfDay % 60, 2);
+		return new String(date);
+	}
+
+	/* Hour (0 - 23) in the default time zone */
+	static int hourOfDay(long timestamp) {
+		Day day = dayContaining(timestamp);
+		if (day == null) {
+			return zonedDateTime(timestamp).getHour();
+		}
+		return (int) ((timestamp - day.startTimestamp) / 3600);
+	}
+
+	/* Seconds since midnight in the default time zone */
+	static int secondOfDay(long timestamp) {
+		Day day = dayContaining(timestamp);
+		if (day == null) {
+			return zonedDateTime(timestamp).toLocalTime().toSecondOfDay();
+		}
+		return (int) (timestamp - day.startTimestamp);
+	}
+
+	static DayOfWeek dayOfWeek(long timestamp) {
+		Day day = dayContaining(timestamp);
+		if (day == null) {
+			return zonedDateTime(timestamp).getDayOfWeek();
+		}
+		return day.dayOfWeek;
+	}
+
+	/* Returns null if the day of the timestamp can not be cached */
+	private static Day dayContaining(long timestamp) {
+		Day day = lastFormattedDay;
+		if (day != null && day.contains(timestamp)) {
+			return day;
+		}
+		LocalDate date = zonedDateTime(timestamp).toLocalDate();
+		if (date.getYear() < FIRST_CACHED_YEAR
+				|| date.getYear() > LAST_CACHED_YEAR) {
+			return null;
+		}
+		day = uniformDay(date);
+		if (day != null) {
+			lastFormattedDay = day;
+		}
+		return day;
+	}
+
+	/* Returns null if the UTC offset changes during the date */
+	private static Day uniformDay(LocalDate date) {
+		ZoneId zone = ZoneId.systemDefault();
+		ZonedDateTime start = date.atStartOfDay(zone);
+		ZonedDateTime end = date.plusDays(1).atStartOfDay(zone);
+		if (start.getHour() != 0 || start.getMinute() != 0
+				|| start.getSecond() != 0 || end.toEpochSecond()
+						- start.toEpochSecond() != SECONDS_IN_DAY) {
+			return null;
+		}
+		return new Day(date, start.toEpochSecond());
+	}
+
+	private static ZonedDateTime zonedDateTime(long timestamp) {
+		return Instant.ofEpochSecond(timestamp)
+				.atZone(ZoneId.systemDefault());
+	}
+
+	private static boolean hasExpectedLayout(String date) {
+		for (int i = 0; i < DATE_LENGTH; i++) {
+			char character = date.charAt(i);
+			char expected = SIMPLE_DATE_FORMAT.charAt(i);
+			if (Character.isLetter(expected)) {
+				if (character < '0' || character > '9') {
+					return false;
+				}
+			} else if (character != expected) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int readDigits(String text, int from, int count) {
+		int value = 0;
+		for (int i = from; i < from + count; i++) {
+			value = 10 * value + (text.charAt(i) - '0');
+		}
+		return value;
+	}
+
+	private static void writeDigits(char[] text, int from, int value,
+			int count) {
+		for (int i = from + count - 1; i >= from; i--) {
+			text[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	private static long parseWithSimpleDateFormat(String date) {
+		try {
+			Date time = new SimpleDateFormat(SIMPLE_DATE_FORMAT).parse(date);
+			return time.getTime() / MILLISECONDS_IN_ONE_SECOND;
+		} catch (ParseException exception) {
+			throw new RuntimeException(exception);
+		}
+	}
+
+	private static String formatWithSimpleDateFormat(long timestamp) {
+		return new SimpleDateFormat(SIMPLE_DATE_FORMAT)
+				.format(new Date(timestamp * MILLISECONDS_IN_ONE_SECOND));
+	}
+}
@@ -1,60 +1,319 @@
 package bus;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /*
  * Trip is a consecutive list of GPS points that a bus followed.
- * 
+ *
  * NOTE: an instance of Trip class doesn't have to be a full trip (e.g. if a bus
  * had a journey Cambridge - Stansted - London - back to Cambridge, then
  * Stansted - London part can be considered as a trip on its own).
+ *
+ * GPS points are not stored as GpsPoint objects. Instead timestamps, latitudes
+ * and longitudes are kept in three parallel primitive arrays, and a trip is a
+ * window [offset, offset + size) into them. That way whole route histories fit
+ * in memory and scanning them does not chase pointers. Trips created by
+ * subTrip and timeInterval share the arrays instead of copying them.
+ *
+ * Most trips own their arrays and nothing modifies them. The exception are
+ * views over mutable buffers, such as VehicleHistory.recentTrip, which share
+ * a ring buffer that later points overwrite. Such a trip (and everything
+ * derived from it: sub trips, unit vectors, the nearest point index) is valid
+ * only until its buffer is next written, e.g. until the vehicle's next point
+ * is added. A trip that has to outlive that is taken with detachedCopy().
  */
 public class Trip {
 	static final int MINIMUM_NUMBER_OF_GPS_POINTS = 8;
+	/* Shorter trips are searched for the closest point one by one */
+	private static final int MIN_INDEXED_SIZE = 32;
 
 	final String name;
-	final ArrayList<GpsPoint> gpsPoints;
+	private final long[] timestamps;
+	private final double[] latitudes;
+	private final double[] longitudes;
+	private final int offset;
+	private final int size;
+
+	/*
+	 * Points as unit vectors (see GpsPoint) and lengths of the segments
+	 * between consecutive points. Distance computations need them, so they
+	 * are built on first use (only for trips that are actually matched
+	 * against). Segment lengths are only needed for paths, and the nearest
+	 * point index uses the unit vectors as they are.
+	 */
+	private volatile UnitVectors unitVectors;
+	private volatile double[] segmentLengths;
+	private volatile NearestPointIndex nearestPointIndex;
+
+	static class UnitVectors {
+		final double[] xs;
+		final double[] ys;
+		final double[] zs;
+
+		private UnitVectors(Trip trip) {
+			xs = new double[trip.size];
+			ys = new double[trip.size];
+			zs = new double[trip.size];
+			for (int i = 0; i < trip.size; i++) {
+				double latitude = trip.latitude(i) * Utils.SCALE_TO_RADIANS;
+				double longitude = trip.longitude(i) * Utils.SCALE_TO_RADIANS;
+				double cosLatitude = Math.cos(latitude);
+				xs[i] = cosLatitude * Math.cos(longitude);
+				ys[i] = cosLatitude * Math.sin(longitude);
+				zs[i] = Math.sin(latitude);
+			}
+		}
+	}
+
+	/*
+	 * Trips can be stored either as CSV files (see writeCsvToFolder) or as
+	 * binary files having BINARY_EXTENSION (see writeBinaryToFolder). Binary
+	 * files are written instead of CSV ones when the program is started with
+	 * -Dbus.binaryTrips=true. Reading accepts both.
+	 */
+	static final String BINARY_EXTENSION = ".bin";
+	static final boolean WRITE_BINARY = Boolean.getBoolean("bus.binaryTrips");
+
+	/*
+	 * Binary file layout (little endian):
+	 * int magic, int version, int number of points n, int unused,
+	 * long[n] timestamps, double[n] latitudes, double[n] longitudes.
+	 *
+	 * Keeping each column contiguous lets the reader binary search timestamps
+	 * in the mapped file and bulk copy the columns into Trip's arrays.
+	 */
+	private static final int BINARY_MAGIC = 0x42555354;
+	private static final int BINARY_VERSION = 1;
+	private static final int BINARY_HEADER_BYTES = 16;
+	private static final int BINARY_BYTES_PER_POINT = 24;
+
+	/* GPS point columns read from a file, before Trip is constructed */
+	private static class Columns {
+		long[] timestamps;
+		double[] latitudes;
+		double[] longitudes;
+		int size;
+	}
 
 	/* Reads trip only until specific moment of time. */
 	Trip(File file, long untilTimestamp) throws ProjectSpecificException {
-		this.name = file.getName();
-		this.gpsPoints = new ArrayList<GpsPoint>();
+		this(tripName(file),
+				isBinaryFile(file) ? readBinaryColumns(file, untilTimestamp)
+						: readCsvColumns(file, untilTimestamp));
+	}
+
+	private Trip(String name, Columns columns)
+			throws ProjectSpecificException {
+		this(name, columns.timestamps, columns.latitudes, columns.longitudes,
+				0, columns.size);
+	}
+
+	static boolean isBinaryFile(File file) {
+		return file.getName().endsWith(BINARY_EXTENSION);
+	}
+
+	/* Binary and CSV files of the same trip give the same trip name */
+	private static String tripName(File file) {
+		String fileName = file.getName();
+		if (isBinaryFile(file)) {
+			return fileName.substring(0,
+					fileName.length() - BINARY_EXTENSION.length());
+		}
+		return fileName;
+	}
+
+	private static Columns readCsvColumns(File file, long untilTimestamp) {
 		Scanner scanner = Utils.csvScanner(file);
 		/* To skip "time,latitude,longitude" line */
 		scanner.nextLine();
 
 		/* Reading GPS points one by one */
+		long[] readTimestamps = new long[64];
+		double[] readLatitudes = new double[64];
+		double[] readLongitudes = new double[64];
+		int readCount = 0;
 		while (scanner.hasNext()) {
-			GpsPoint point = new GpsPoint(
-					Utils.convertDateToTimestamp(scanner.next()),
-					scanner.nextDouble(), scanner.nextDouble());
-			if (point.timestamp > untilTimestamp) {
+			long timestamp = Utils.convertDateToTimestamp(scanner.next());
+			double latitude = scanner.nextDouble();
+			double longitude = scanner.nextDouble();
+			if (timestamp > untilTimestamp) {
 				break;
 			}
-			this.gpsPoints.add(point);
+			if (readCount == readTimestamps.length) {
+				readTimestamps = Arrays.copyOf(readTimestamps, 2 * readCount);
+				readLatitudes = Arrays.copyOf(readLatitudes, 2 * readCount);
+				readLongitudes = Arrays.copyOf(readLongitudes, 2 * readCount);
+			}
+			readTimestamps[readCount] = timestamp;
+			readLatitudes[readCount] = latitude;
+			readLongitudes[readCount] = longitude;
+			readCount++;
 		}
 		scanner.close();
 
-		if (this.gpsPoints.size() < MINIMUM_NUMBER_OF_GPS_POINTS) {
-			throw ProjectSpecificException
-					.tripDoesNotHaveEnoughPoints(file.getName());
+		/* Trimming, so that no memory is wasted on unused capacity */
+		Columns columns = new Columns();
+		columns.timestamps = Arrays.copyOf(readTimestamps, readCount);
+		columns.latitudes = Arrays.copyOf(readLatitudes, readCount);
+		columns.longitudes = Arrays.copyOf(readLongitudes, readCount);
+		columns.size = readCount;
+		return columns;
+	}
+
+	private static Columns readBinaryColumns(File file, long untilTimestamp)
+			throws ProjectSpecificException {
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			if (fileSize < BINARY_HEADER_BYTES) {
+				throw new ProjectSpecificException(
+						file.getName() + " is not a binary trip file");
+			}
+			ByteBuffer buffer = channel
+					.map(FileChannel.MapMode.READ_ONLY, 0, fileSize)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			int count = buffer.getInt(8);
+			if (buffer.getInt(0) != BINARY_MAGIC
+					|| buffer.getInt(4) != BINARY_VERSION || count < 0
+					|| fileSize < BINARY_HEADER_BYTES
+							+ (long) BINARY_BYTES_PER_POINT * count) {
+				throw new ProjectSpecificException(
+						file.getName() + " is not a binary trip file");
+			}
+
+			/* Number of points having timestamp <= untilTimestamp */
+			int timestampsPosition = BINARY_HEADER_BYTES;
+			int low = 0;
+			int high = count;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (buffer.getLong(
+						timestampsPosition + 8 * middle) <= untilTimestamp) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+
+			Columns columns = new Columns();
+			columns.size = low;
+			columns.timestamps = new long[low];
+			columns.latitudes = new double[low];
+			columns.longitudes = new double[low];
+			buffer.position(timestampsPosition);
+			buffer.asLongBuffer().get(columns.timestamps);
+			buffer.position(timestampsPosition + 8 * count);
+			buffer.asDoubleBuffer().get(columns.latitudes);
+			buffer.position(timestampsPosition + 16 * count);
+			buffer.asDoubleBuffer().get(columns.longitudes);
+			return columns;
+		} catch (IOException exception) {
+			throw new RuntimeException(exception);
+		}
+	}
+
+	/*
+	 * Timestamp of the trip's first point, reading only the beginning of the
+	 * file.
+	 */
+	static long readFirstTimestamp(File file) throws ProjectSpecificException {
+		if (isBinaryFile(file)) {
+			try (FileChannel channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ)) {
+				ByteBuffer buffer = ByteBuffer
+						.allocate(BINARY_HEADER_BYTES + 8)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						break;
+					}
+				}
+				if (buffer.hasRemaining() || buffer.getInt(0) != BINARY_MAGIC
+						|| buffer.getInt(4) != BINARY_VERSION
+						|| buffer.getInt(8) <= 0) {
+					throw new ProjectSpecificException(
+							file.getName() + " is not a binary trip file");
+				}
+				return buffer.getLong(BINARY_HEADER_BYTES);
+			} catch (IOException exception) {
+				throw new RuntimeException(exception);
+			}
+		}
+		try (BufferedReader reader = new BufferedReader(
+				new FileReader(file))) {
+			/* Skipping "time,latitude,longitude" line */
+			reader.readLine();
+			String line = reader.readLine();
+			if (line == null || line.indexOf(',') < 0) {
+				throw new ProjectSpecificException(
+						file.getName() + " has no GPS points");
+			}
+			return Utils.convertDateToTimestamp(
+					line.substring(0, line.indexOf(',')));
+		} catch (IOException exception) {
+			throw new RuntimeException(exception);
 		}
 	}
 
 	Trip(String name, ArrayList<GpsPoint> gpsPoints)
 			throws ProjectSpecificException {
 		this.name = name;
-		this.gpsPoints = gpsPoints;
-		if (this.gpsPoints.size() < MINIMUM_NUMBER_OF_GPS_POINTS) {
+		this.size = gpsPoints.size();
+		this.offset = 0;
+		this.timestamps = new long[size];
+		this.latitudes = new double[size];
+		this.longitudes = new double[size];
+		for (int i = 0; i < size; i++) {
+			GpsPoint point = gpsPoints.get(i);
+			timestamps[i] = point.timestamp;
+			latitudes[i] = point.latitude;
+			longitudes[i] = point.longitude;
+		}
+		if (this.size < MINIMUM_NUMBER_OF_GPS_POINTS) {
+			throw ProjectSpecificException.tripDoesNotHaveEnoughPoints(name);
+		}
+	}
+
+	/*
+	 * The arrays are not copied. If the caller modifies them later, the trip
+	 * is valid only until then (see the class comment).
+	 */
+	Trip(String name, long[] timestamps, double[] latitudes,
+			double[] longitudes, int offset, int size)
+			throws ProjectSpecificException {
+		this.name = name;
+		this.timestamps = timestamps;
+		this.latitudes = latitudes;
+		this.longitudes = longitudes;
+		this.offset = offset;
+		this.size = size;
+		if (this.size < MINIMUM_NUMBER_OF_GPS_POINTS) {
 			throw ProjectSpecificException.tripDoesNotHaveEnoughPoints(name);
 		}
 	}
 
+	/* View of trip's points [from, from + size), which may be few */
+	private Trip(Trip trip, int from, int size) {
+		this.name = trip.name;
+		this.timestamps = trip.timestamps;
+		this.latitudes = trip.latitudes;
+		this.longitudes = trip.longitudes;
+		this.offset = trip.offset + from;
+		this.size = size;
+	}
+
 	static Trip readFromFile(File file) {
 		try {
 			return new Trip(file, Long.MAX_VALUE);
@@ -69,32 +328,64 @@ public class Trip {
 
 	Trip makeCopyWithNewName(String newName) {
 		try {
-			return new Trip(newName, this.gpsPoints);
+			return new Trip(newName, timestamps, latitudes, longitudes, offset,
+					size);
 		} catch (ProjectSpecificException exception) {
 			/* This code path should never be reached */
 			throw new RuntimeException(exception);
 		}
 	}
 
-	Trip subTrip(int fromIndex, int toIndex) throws ProjectSpecificException {
+	/* Copy having its own arrays, e.g. of a view whose arrays change later */
+	Trip detachedCopy() {
 		try {
-			return new Trip(name, new ArrayList<GpsPoint>(
-					gpsPoints.subList(fromIndex, toIndex)));
-		} catch (IndexOutOfBoundsException exception) {
-			throw new ProjectSpecificException(exception.getMessage());
+			return new Trip(name,
+					Arrays.copyOfRange(timestamps, offset, offset + size),
+					Arrays.copyOfRange(latitudes, offset, offset + size),
+					Arrays.copyOfRange(longitudes, offset, offset + size), 0,
+					size);
+		} catch (ProjectSpecificException exception) {
+			throw new RuntimeException(exception);
 		}
 	}
 
-	ArrayList<GpsPoint> timeInterval(long fromTimestamp, long toTimestamp)
-			throws ProjectSpecificException {
-		ArrayList<GpsPoint> points = new ArrayList<GpsPoint>();
-		for (GpsPoint point : gpsPoints) {
-			if (point.timestamp >= fromTimestamp
-					&& point.timestamp <= toTimestamp) {
-				points.add(point);
+	Trip subTrip(int fromIndex, int toIndex) throws ProjectSpecificException {
+		if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+			throw new ProjectSpecificException("Sub trip [" + fromIndex + ", "
+					+ toIndex + ") is out of bounds for " + name
+					+ " having " + size + " GPS points.");
+		}
+		return new Trip(name, timestamps, latitudes, longitudes,
+				offset + fromIndex, toIndex - fromIndex);
+	}
+
+	/*
+	 * View of the points with timestamps within [fromTimestamp, toTimestamp].
+	 * Timestamps never decrease along a trip, so the view's ends are found by
+	 * binary search and no points are copied. Unlike other trips, the view
+	 * may have fewer than MINIMUM_NUMBER_OF_GPS_POINTS points (even none).
+	 */
+	Trip timeInterval(long fromTimestamp, long toTimestamp) {
+		int from = pointsBefore(fromTimestamp, false);
+		int to = Math.max(from, pointsBefore(toTimestamp, true));
+		return new Trip(this, from, to - from);
+	}
+
+	/* Number of points with timestamp < (or <= if inclusive) the timestamp */
+	private int pointsBefore(long timestamp, boolean inclusive) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			long middleTimestamp = timestamps[offset + middle];
+			if (middleTimestamp < timestamp
+					|| (inclusive && middleTimestamp == timestamp)) {
+				low = middle + 1;
+			} else {
+				high = middle;
 			}
 		}
-		return points;
+		return low;
 	}
 
 	static ArrayList<Trip> readFromFolder(File folder) {
@@ -128,12 +419,20 @@ public class Trip {
 
 	/* The file to which we output is specified by trips name */
 	void writeToFolder(File folder) {
+		if (WRITE_BINARY) {
+			writeBinaryToFolder(folder);
+		} else {
+			writeCsvToFolder(folder);
+		}
+	}
+
+	void writeCsvToFolder(File folder) {
 		try {
 			BufferedWriter writer = new BufferedWriter(
 					new FileWriter(folder + "/" + name));
 			Utils.writeLine(writer, "time,latitude,longitude");
-			for (GpsPoint point : gpsPoints) {
-				point.write(writer);
+			for (int i = 0; i < size; i++) {
+				point(i).write(writer);
 			}
 			writer.close();
 		} catch (IOException exception) {
@@ -141,21 +440,240 @@ public class Trip {
 		}
 	}
 
+	void writeBinaryToFolder(File folder) {
+		ByteBuffer buffer = ByteBuffer
+				.allocate(BINARY_HEADER_BYTES + BINARY_BYTES_PER_POINT * size)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(BINARY_MAGIC).putInt(BINARY_VERSION).putInt(size)
+				.putInt(0);
+		for (int i = offset; i < offset + size; i++) {
+			buffer.putLong(timestamps[i]);
+		}
+		for (int i = offset; i < offset + size; i++) {
+			buffer.putDouble(latitudes[i]);
+		}
+		for (int i = offset; i < offset + size; i++) {
+			buffer.putDouble(longitudes[i]);
+		}
+		buffer.flip();
+
+		try (FileChannel channel = FileChannel.open(
+				new File(folder, name + BINARY_EXTENSION).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException exception) {
+			throw new RuntimeException(exception);
+		}
+	}
+
+	/* Number of GPS points in this trip */
+	int size() {
+		return size;
+	}
+
+	long timestamp(int index) {
+		return timestamps[offset + index];
+	}
+
+	double latitude(int index) {
+		return latitudes[offset + index];
+	}
+
+	double longitude(int index) {
+		return longitudes[offset + index];
+	}
+
+	/*
+	 * Materialises index-th GPS point as an object. Hot loops should use
+	 * timestamp(), latitude() and longitude() instead.
+	 */
+	GpsPoint point(int index) {
+		return new GpsPoint(timestamp(index), latitude(index),
+				longitude(index));
+	}
+
 	GpsPoint firstPoint() {
-		return gpsPoints.get(0);
+		return point(0);
 	}
 
 	GpsPoint secondPoint() {
-		return gpsPoints.get(1);
+		return point(1);
 	}
 
 	GpsPoint lastPoint() {
-		return gpsPoints.get(gpsPoints.size() - 1);
+		return point(size - 1);
+	}
+
+	long lastTimestamp() {
+		return timestamp(size - 1);
+	}
+
+	private UnitVectors unitVectors() {
+		UnitVectors computed = unitVectors;
+		if (computed == null) {
+			/* Racing threads compute equal values, so either one can win */
+			computed = new UnitVectors(this);
+			unitVectors = computed;
+		}
+		return computed;
+	}
+
+	/* Distance between index-th point and the point */
+	double distance(int index, GpsPoint point) {
+		UnitVectors u = unitVectors();
+		return Utils.distance(u.xs[index], u.ys[index], u.zs[index],
+				point.unitX(), point.unitY(), point.unitZ());
+	}
+
+	/* Distance between index-th point and otherIndex-th point of other */
+	double distance(int index, Trip other, int otherIndex) {
+		UnitVectors u = unitVectors();
+		UnitVectors o = other.unitVectors();
+		return Utils.distance(u.xs[index], u.ys[index], u.zs[index],
+				o.xs[otherIndex], o.ys[otherIndex], o.zs[otherIndex]);
+	}
+
+	/* See Utils.distanceOrder */
+	double distanceOrder(int index, GpsPoint point) {
+		UnitVectors u = unitVectors();
+		return Utils.distanceOrder(u.xs[index], u.ys[index], u.zs[index],
+				point.unitX(), point.unitY(), point.unitZ());
+	}
+
+	/* Same as above, between index-th point and otherIndex-th point */
+	private double distanceOrder(int index, int otherIndex) {
+		UnitVectors u = unitVectors();
+		return Utils.distanceOrder(u.xs[index], u.ys[index], u.zs[index],
+				u.xs[otherIndex], u.ys[otherIndex], u.zs[otherIndex]);
+	}
+
+	boolean samePlace(int index, GpsPoint point) {
+		UnitVectors u = unitVectors();
+		return Utils.samePlace(u.xs[index], u.ys[index], u.zs[index],
+				point.unitX(), point.unitY(), point.unitZ());
+	}
+
+	/*
+	 * Index of the point closest to the point, the smallest one if several
+	 * are equally close. Long trips answer it through a KD-tree, which is
+	 * built on first use.
+	 */
+	int closestPointIndex(GpsPoint point) {
+		return closestPointIndex(point, -1);
+	}
+
+	/*
+	 * Same as above, where guess (-1 if none) is an index likely to be close
+	 * to the answer, e.g. the answer for a point nearby. The answer is the
+	 * same, but a good guess makes finding it faster.
+	 */
+	int closestPointIndex(GpsPoint point, int guess) {
+		if (size < MIN_INDEXED_SIZE || Utils.PLANAR_DISTANCE) {
+			int closestPointIndex = -1;
+			double closestPointDistance = Double.MAX_VALUE;
+			for (int i = 0; i < size; i++) {
+				double newDistance = distanceOrder(i, point);
+				if (newDistance < closestPointDistance) {
+					closestPointIndex = i;
+					closestPointDistance = newDistance;
+				}
+			}
+			return closestPointIndex;
+		}
+		NearestPointIndex index = nearestPointIndex;
+		if (index == null) {
+			index = new NearestPointIndex(this, unitVectors());
+			nearestPointIndex = index;
+		}
+		return index.closestPointIndex(point, guess);
+	}
+
+	/*
+	 * Index of a point close to the point, found by walking from the from-th
+	 * point (the answer for where a vehicle was a moment ago) forward while
+	 * points get closer, or backward if the first step forward does not get
+	 * closer. A vehicle moves little between two GPS points, so this costs a
+	 * few distance computations instead of a search. Only the points around
+	 * from are considered, hence a trip passing the same place twice keeps
+	 * matching the pass the vehicle follows.
+	 *
+	 * If the point is further from the point found than that is from both its
+	 * neighbours, the vehicle is not near this part of the trip, and
+	 * closestPointIndex(point) is returned instead.
+	 */
+	int followClosestPointIndex(GpsPoint point, int from) {
+		int index = from;
+		double order = distanceOrder(index, point);
+		while (index + 1 < size) {
+			double nextOrder = distanceOrder(index + 1, point);
+			if (nextOrder > order) {
+				break;
+			}
+			index++;
+			order = nextOrder;
+		}
+		if (index == from) {
+			while (index > 0) {
+				double previousOrder = distanceOrder(index - 1, point);
+				if (previousOrder >= order) {
+					break;
+				}
+				index--;
+				order = previousOrder;
+			}
+		}
+
+		if ((index > 0 && order <= distanceOrder(index, index - 1))
+				|| (index + 1 < size
+						&& order <= distanceOrder(index, index + 1))) {
+			return index;
+		}
+		return closestPointIndex(point, index);
+	}
+
+	/*
+	 * Builds the lazily computed distance caches now, e.g. for a path that
+	 * all threads will match against.
+	 */
+	void precompute() {
+		if (size > 1) {
+			segmentLength(1);
+		}
+		if (size > 0) {
+			closestPointIndex(point(0), -1);
+		}
+	}
+
+	/* Length of the segment between (index - 1)-th and index-th points */
+	double segmentLength(int index) {
+		double[] lengths = segmentLengths;
+		if (lengths == null) {
+			lengths = new double[size];
+			for (int i = 1; i < size; i++) {
+				lengths[i] = distance(i - 1, this, i);
+			}
+			segmentLengths = lengths;
+		}
+		return lengths[index];
+	}
+
+	/*
+	 * GpsPoint.ratioToSegmentCorners of index-th point to the path's segment
+	 * ending at its segmentEnd-th point.
+	 */
+	double ratioToSegmentCorners(int index, Trip path, int segmentEnd) {
+		return GpsPoint.ratioToSegmentCorners(
+				distance(index, path, segmentEnd - 1)
+						+ distance(index, path, segmentEnd),
+				path.segmentLength(segmentEnd));
 	}
 
 	/* Returns the length of this trip in seconds */
 	long duration() {
-		return lastPoint().timestamp - firstPoint().timestamp;
+		return timestamp(size - 1) - timestamp(0);
 	}
 
 }
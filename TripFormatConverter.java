@@ -0,0 +1,46 @@
+package bus;
+
+import java.io.File;
+
+/*
+ * Converts trip files between the CSV and the binary format (see Trip).
+ * Each CSV file in the input folder is written as a binary file to the output
+ * folder, and each binary file is written as a CSV file. Subfolders (e.g. one
+ * folder per route in the historical data folder) are converted recursively.
+ *
+ * Usage:
+ * java bus.TripFormatConverter input_folder output_folder
+ */
+class TripFormatConverter {
+
+	public static void main(String[] args) throws ProjectSpecificException {
+		Utils.checkCommandLineArguments(args, "folder", "folder");
+		int converted = convertFolder(new File(args[0]), new File(args[1]));
+		System.out.println("Converted " + converted + " trips.");
+	}
+
+	static int convertFolder(File inputFolder, File outputFolder) {
+		int converted = 0;
+		for (File file : inputFolder.listFiles()) {
+			if (file.isDirectory()) {
+				File outputSubfolder = new File(outputFolder, file.getName());
+				outputSubfolder.mkdir();
+				converted += convertFolder(file, outputSubfolder);
+				continue;
+			}
+
+			try {
+				Trip trip = new Trip(file, Long.MAX_VALUE);
+				if (Trip.isBinaryFile(file)) {
+					trip.writeCsvToFolder(outputFolder);
+				} else {
+					trip.writeBinaryToFolder(outputFolder);
+				}
+				converted++;
+			} catch (ProjectSpecificException exception) {
+				System.out.println(exception.getMessage());
+			}
+		}
+		return converted;
+	}
+}
@@ -7,25 +7,50 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.Random;
 import java.util.Scanner;
 
 public class Utils {
 
-	private static final String SIMPLE_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
-	private static final long MILLISECONDS_IN_ONE_SECOND = 1000;
-
 	// If two GPS points are within this distance, then I conclude
 	// that they are at the same place.
 	// TODO(ml693): change back to 0.000007;
-	private static final double SAME_PLACE_DISTANCE_RANGE = 0.000010;
+	static final double SAME_PLACE_DISTANCE_RANGE = 0.000010;
+	/* Comparing cosines lets samePlace skip Math.acos */
+	private static final double COS_SAME_PLACE_DISTANCE_RANGE = Math
+			.cos(SAME_PLACE_DISTANCE_RANGE);
+
+	static final double SCALE_TO_RADIANS = Math.PI / 180f;
+
+	/*
+	 * Optional planar mode, switched on with -Dbus.planarDistance=true. Points
+	 * are projected onto a plane tangent to the earth around them
+	 * (equirectangular projection), which needs no trigonometric calls at
+	 * all. For points at most PLANAR_DISTANCE_RANGE apart (~64km, more than
+	 * any city) the relative difference from the great-circle distance is
+	 * below PLANAR_DISTANCE_ERROR_BOUND for latitudes up to 60 degrees. This
+	 * is checked by ArbitraryCodeExecutor.checkPlanarDistance.
+	 */
+	static final boolean PLANAR_DISTANCE = Boolean
+			.getBoolean("bus.planarDistance");
+	static final double PLANAR_DISTANCE_RANGE = 0.01;
+	static final double PLANAR_DISTANCE_ERROR_BOUND = 0.0001;
 
 	static boolean samePlace(GpsPoint p1, GpsPoint p2) {
-		return Utils.distance(p1, p2) < SAME_PLACE_DISTANCE_RANGE;
+		return samePlace(p1.unitX(), p1.unitY(), p1.unitZ(), p2.unitX(),
+				p2.unitY(), p2.unitZ());
+	}
+
+	/* Same as above, for points given as unit vectors (see GpsPoint) */
+	static boolean samePlace(double x1, double y1, double z1, double x2,
+			double y2, double z2) {
+		if (PLANAR_DISTANCE) {
+			return planarDistance(x1, y1, z1, x2, y2,
+					z2) < SAME_PLACE_DISTANCE_RANGE;
+		}
+		return cosOfDistance(x1, y1, z1, x2, y2,
+				z2) > COS_SAME_PLACE_DISTANCE_RANGE;
 	}
 
 	/*
@@ -33,16 +58,38 @@ public class Utils {
 	 * represents y coordinate and longitude represents x coordinate;
 	 */
 	static double distance(GpsPoint p1, GpsPoint p2) {
-		double scaleToRadians = Math.PI / 180f;
-		double sinLatitude1 = Math.sin(p1.latitude * scaleToRadians);
-		double sinLatitude2 = Math.sin(p2.latitude * scaleToRadians);
-		double cosLatitude1 = Math.cos(p1.latitude * scaleToRadians);
-		double cosLatitude2 = Math.cos(p2.latitude * scaleToRadians);
-		double cosLongitude = Math
-				.cos((p1.longitude - p2.longitude) * scaleToRadians);
-
-		double cos = sinLatitude1 * sinLatitude2
-				+ cosLatitude1 * cosLatitude2 * cosLongitude;
+		return distance(p1.unitX(), p1.unitY(), p1.unitZ(), p2.unitX(),
+				p2.unitY(), p2.unitZ());
+	}
+
+	/*
+	 * The distance kernel. Points are unit vectors computed once by the
+	 * callers (GpsPoint, Trip), so the great-circle distance costs a dot
+	 * product and a single Math.acos, the planar one a few Math.sqrt.
+	 */
+	static double distance(double x1, double y1, double z1, double x2,
+			double y2, double z2) {
+		if (PLANAR_DISTANCE) {
+			return planarDistance(x1, y1, z1, x2, y2, z2);
+		}
+		return greatCircleDistance(x1, y1, z1, x2, y2, z2);
+	}
+
+	/*
+	 * Grows together with the distance, hence can be used instead of it when
+	 * only comparing distances (e.g. finding the closest point).
+	 */
+	static double distanceOrder(double x1, double y1, double z1, double x2,
+			double y2, double z2) {
+		if (PLANAR_DISTANCE) {
+			return planarDistance(x1, y1, z1, x2, y2, z2);
+		}
+		return -cosOfDistance(x1, y1, z1, x2, y2, z2);
+	}
+
+	static double greatCircleDistance(double x1, double y1, double z1,
+			double x2, double y2, double z2) {
+		double cos = cosOfDistance(x1, y1, z1, x2, y2, z2);
 		if (cos < -1.0) {
 			cos = -1.0;
 		}
@@ -52,22 +99,37 @@ public class Utils {
 		return Math.acos(cos);
 	}
 
+	/* Cosine of the angle between unit vectors is their dot product */
+	private static double cosOfDistance(double x1, double y1, double z1,
+			double x2, double y2, double z2) {
+		return x1 * x2 + y1 * y2 + z1 * z2;
+	}
+
+	/*
+	 * Sines of latitude and longitude differences stand in for the
+	 * differences themselves, longitude difference being scaled by the mean
+	 * cosine of the two latitudes. Sines and cosines are read off the unit
+	 * vectors: z is the sine of the latitude, the length of (x, y) its cosine.
+	 */
+	static double planarDistance(double x1, double y1, double z1, double x2,
+			double y2, double z2) {
+		double cosLatitude1 = Math.sqrt(x1 * x1 + y1 * y1);
+		double cosLatitude2 = Math.sqrt(x2 * x2 + y2 * y2);
+		double y = z1 * cosLatitude2 - cosLatitude1 * z2;
+		/* y1 * x2 - x1 * y2 is sin(longitude difference) * both cosines */
+		double sinLongitudeDifference = (y1 * x2 - x1 * y2)
+				/ (cosLatitude1 * cosLatitude2);
+		double x = sinLongitudeDifference * (cosLatitude1 + cosLatitude2)
+				/ 2.0;
+		return Math.sqrt(x * x + y * y);
+	}
+
 	static long convertDateToTimestamp(String date) {
-		try {
-			SimpleDateFormat simpleDateFormat = new SimpleDateFormat(
-					SIMPLE_DATE_FORMAT);
-			Date time = simpleDateFormat.parse(date);
-			return time.getTime() / MILLISECONDS_IN_ONE_SECOND;
-		} catch (Exception exception) {
-			throw new RuntimeException(exception);
-		}
+		return TimestampCodec.parse(date);
 	}
 
 	static String convertTimestampToDate(Long timestamp) {
-		Date date = new Date(timestamp * MILLISECONDS_IN_ONE_SECOND);
-		SimpleDateFormat simpleDateFormat = new SimpleDateFormat(
-				SIMPLE_DATE_FORMAT);
-		return simpleDateFormat.format(date);
+		return TimestampCodec.format(timestamp);
 	}
 
 	static Scanner csvScanner(File file) {
@@ -106,6 +168,24 @@ public class Utils {
 		}
 	}
 
+	/*
+	 * Number of files in the folder and the latest of their modification
+	 * times, empty if the folder does not exist. Changes when files are
+	 * added, removed or rewritten in place, unlike the folder's own
+	 * modification time.
+	 */
+	static String folderSignature(File folder) {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return "";
+		}
+		long lastModified = 0L;
+		for (File file : files) {
+			lastModified = Math.max(lastModified, file.lastModified());
+		}
+		return files.length + "@" + lastModified;
+	}
+
 	static ArrayList<File> filesInFolder(String folderName) {
 		return new ArrayList<File>(
 				Arrays.asList(new File(folderName).listFiles()));
@@ -148,10 +228,4 @@ public class Utils {
 					"Argument expectation is given wrong name"));
 		}
 	}
-
-	private static final Random randomBitGenerator = new Random();
-
-	static boolean randomBit() {
-		return (randomBitGenerator.nextInt(2) == 1);
-	}
 }
@@ -0,0 +1,78 @@
+package bus;
+
+/*
+ * The last CAPACITY GPS points of a vehicle, kept in primitive ring buffers.
+ * Each point is stored twice, at slot i and i + CAPACITY of arrays twice the
+ * capacity long, so the most recent points are always contiguous and
+ * recentTrip returns a Trip viewing the arrays instead of copying them.
+ *
+ * A view is valid until the next point is added, after which its slots may
+ * be overwritten. The last view is cached, so asking again for the same
+ * number of points without adding any allocates nothing.
+ */
+class VehicleHistory {
+	static final int CAPACITY = 2 * Trip.MINIMUM_NUMBER_OF_GPS_POINTS;
+
+	final String vehicleId;
+	private final long[] timestamps = new long[2 * CAPACITY];
+	private final double[] latitudes = new double[2 * CAPACITY];
+	private final double[] longitudes = new double[2 * CAPACITY];
+	/* Number of points ever added */
+	private long added;
+
+	/* Unit vector (see GpsPoint) of the last added point */
+	private double lastX;
+	private double lastY;
+	private double lastZ;
+
+	private Trip view;
+	private long viewAdded;
+
+	VehicleHistory(String vehicleId) {
+		this.vehicleId = vehicleId;
+	}
+
+	/* Points at the same place as the last one are not added */
+	void add(long timestamp, double latitude, double longitude) {
+		double latitudeRadians = latitude * Utils.SCALE_TO_RADIANS;
+		double longitudeRadians = longitude * Utils.SCALE_TO_RADIANS;
+		double cosLatitude = Math.cos(latitudeRadians);
+		double x = cosLatitude * Math.cos(longitudeRadians);
+		double y = cosLatitude * Math.sin(longitudeRadians);
+		double z = Math.sin(latitudeRadians);
+		if (added > 0 && Utils.samePlace(lastX, lastY, lastZ, x, y, z)) {
+			return;
+		}
+		lastX = x;
+		lastY = y;
+		lastZ = z;
+
+		int slot = (int) (added % CAPACITY);
+		timestamps[slot] = timestamps[slot + CAPACITY] = timestamp;
+		latitudes[slot] = latitudes[slot + CAPACITY] = latitude;
+		longitudes[slot] = longitudes[slot + CAPACITY] = longitude;
+		added++;
+	}
+
+	/* Number of points kept, at most CAPACITY */
+	int size() {
+		return (int) Math.min(added, CAPACITY);
+	}
+
+	/*
+	 * View of the last numberOfPoints points (or of all kept points if there
+	 * are fewer), named by the vehicle.
+	 */
+	Trip recentTrip(int numberOfPoints) throws ProjectSpecificException {
+		int size = Math.min(numberOfPoints, size());
+		if (view != null && viewAdded == added && view.size() == size) {
+			return view;
+		}
+		/* The last point is at slot + CAPACITY, earlier ones right before */
+		int lastSlot = (int) ((added - 1) % CAPACITY);
+		view = new Trip(vehicleId, timestamps, latitudes, longitudes,
+				lastSlot + CAPACITY + 1 - size, size);
+		viewAdded = added;
+		return view;
+	}
+}
@@ -0,0 +1,123 @@
+package bus;
+
+/*
+ * What the last prediction for a vehicle found, kept by the real time watcher
+ * between ticks and advanced on the next tick instead of being recomputed. A
+ * vehicle moves little between two ticks, so:
+ *
+ * - if its recent trip did not change at all (no new GPS point), the previous
+ * predictions are returned as they are;
+ * - candidate historical trips are taken again only when the trip's last
+ * timestamp moves to another bucket of RouteHistory.candidates;
+ * - each candidate's point matched to the vehicle is advanced from the
+ * previous one (Trip.followClosestPointIndex), only new candidates are
+ * searched for it;
+ * - each candidate's congestion check is kept as long as its inputs (the
+ * matched point, the recent trip's first points and duration) stay the same,
+ * e.g. when only the predicted stops change. Otherwise it is redone, but only
+ * for candidates that give the median prediction of some stop.
+ *
+ * The matched points follow the vehicle along each historical trip, so they
+ * can differ from Trip.closestPointIndex for historical trips passing the
+ * same place twice.
+ */
+class VehiclePredictionState {
+	private RouteHistory history;
+	/* history.candidates(...) of timestamps having candidatesKey */
+	private int candidatesKey = -1;
+	private int[] candidates = new int[0];
+	/* Of candidates[c]: index of its point matched to the vehicle */
+	private int[] matchedIndices = new int[0];
+	/* Of candidates[c], as in ArrivalTimePredictor.makePredictions */
+	private byte[] congestion = new byte[0];
+
+	/* The trip and stops of the previous predictions */
+	private long firstTimestamp;
+	private long lastTimestamp;
+	private int tripSize;
+	private int fromStop;
+	private int toStop;
+	private Prediction[] predictions;
+
+	/* Same as ArrivalTimePredictor.makePredictions(...) */
+	Prediction[] makePredictions(RouteHistory history, int fromStop,
+			int toStop, Trip trip) throws ProjectSpecificException {
+		boolean sameTrip = history == this.history && sameTrip(trip);
+		if (predictions != null && sameTrip && fromStop == this.fromStop
+				&& toStop == this.toStop) {
+			return predictions;
+		}
+
+		if (history != this.history) {
+			this.history = history;
+			candidates = new int[0];
+			matchedIndices = new int[0];
+			congestion = new byte[0];
+			candidatesKey = -1;
+		}
+		int key = history.candidatesKey(trip.lastTimestamp());
+		if (key != candidatesKey) {
+			takeCandidates(history.candidates(trip.lastTimestamp()));
+			candidatesKey = key;
+		}
+
+		GpsPoint lastPoint = trip.lastPoint();
+		for (int c = 0; c < candidates.length; c++) {
+			Trip historicalTrip = history.trips.get(candidates[c]);
+			if (matchedIndices[c] < 0) {
+				matchedIndices[c] = historicalTrip.closestPointIndex(lastPoint);
+				congestion[c] = 0;
+			} else if (!sameTrip) {
+				matchedIndices[c] = historicalTrip
+						.followClosestPointIndex(lastPoint, matchedIndices[c]);
+				/* The trip changed, so the check has to be redone */
+				congestion[c] = 0;
+			}
+		}
+
+		this.predictions = ArrivalTimePredictor.makePredictions(history,
+				fromStop, toStop, trip, candidates, matchedIndices, congestion,
+				-1);
+		this.firstTimestamp = trip.timestamp(0);
+		this.lastTimestamp = trip.lastTimestamp();
+		this.tripSize = trip.size();
+		this.fromStop = fromStop;
+		this.toStop = toStop;
+		return predictions;
+	}
+
+	/*
+	 * Replaces the candidates, keeping what is known about those that stay.
+	 * Both candidate arrays are increasing, so they are merged.
+	 */
+	private void takeCandidates(int[] newCandidates) {
+		int[] newMatchedIndices = new int[newCandidates.length];
+		byte[] newCongestion = new byte[newCandidates.length];
+		int previous = 0;
+		for (int c = 0; c < newCandidates.length; c++) {
+			while (previous < candidates.length
+					&& candidates[previous] < newCandidates[c]) {
+				previous++;
+			}
+			if (previous < candidates.length
+					&& candidates[previous] == newCandidates[c]) {
+				newMatchedIndices[c] = matchedIndices[previous];
+				newCongestion[c] = congestion[previous];
+			} else {
+				newMatchedIndices[c] = -1;
+			}
+		}
+		candidates = newCandidates;
+		matchedIndices = newMatchedIndices;
+		congestion = newCongestion;
+	}
+
+	/*
+	 * Recent trips of a vehicle are its last points, which are only ever
+	 * appended, so equal ends and sizes mean equal trips.
+	 */
+	private boolean sameTrip(Trip trip) {
+		return trip.size() == tripSize && trip.timestamp(0) == firstTimestamp
+				&& trip.lastTimestamp() == lastTimestamp;
+	}
+}
@@ -0,0 +1,169 @@
+package bus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Benchmarks of the code the real time watcher and the evaluation spend their
+ * time in: distances, snapshot parsing, path matching, arrival time
+ * predictions, reading trips and splitting travel histories into trips. All
+ * inputs come from SyntheticData, so they are the same in every run.
+ *
+ * Usage:
+ * mvn -B package
+ * java -jar benchmarks/target/benchmarks.jar [benchmark name regex]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotPathBenchmarks {
+	private static final int STOPS = 30;
+	private static final int HISTORICAL_TRIPS = 500;
+	private static final int SNAPSHOT_VEHICLES = 1000;
+	private static final int JOURNEYS_IN_HISTORY = 50;
+
+	private File folder;
+	private GpsPoint point1;
+	private GpsPoint point2;
+	private byte[] snapshot;
+	private Route route;
+	private Trip path;
+	private Trip tripOnPath;
+	private Trip tripElsewhere;
+	private Trip tripInProgress;
+	private ArrayList<Trip> historicalTrips;
+	private RouteHistory history;
+	private File csvTrip;
+	private File binaryTrip;
+	private File travelHistory;
+	private File splitTripsFolder;
+
+	@Setup(Level.Trial)
+	public void setUp() throws ProjectSpecificException, IOException {
+		SyntheticData data = new SyntheticData(STOPS);
+		folder = Files.createTempDirectory("bus-benchmarks").toFile();
+
+		point1 = new GpsPoint(0L, 52.2, 0.1);
+		point2 = new GpsPoint(0L, 52.2051, 0.1083);
+		snapshot = data.snapshot(SNAPSHOT_VEHICLES);
+
+		route = data.route;
+		path = data.path;
+		tripOnPath = data.trip("onPath", 1476781200L, 9.0, 5.0, 3.0);
+		tripElsewhere = data.tripElsewhere();
+		tripInProgress = data.tripInProgress(tripOnPath.size() / 2);
+		historicalTrips = data.historicalTrips(HISTORICAL_TRIPS);
+		history = new RouteHistory(route, historicalTrips);
+
+		File tripsFolder = new File(folder, "trips");
+		tripsFolder.mkdir();
+		Trip trip = historicalTrips.get(0);
+		trip.writeCsvToFolder(tripsFolder);
+		trip.writeBinaryToFolder(tripsFolder);
+		csvTrip = new File(tripsFolder, trip.name);
+		binaryTrip = new File(tripsFolder, trip.name + Trip.BINARY_EXTENSION);
+
+		travelHistory = new File(folder, "history.csv");
+		data.writeTravelHistory(travelHistory, JOURNEYS_IN_HISTORY);
+		splitTripsFolder = new File(folder, "split");
+		splitTripsFolder.mkdir();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		deleteRecursively(folder);
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Benchmark
+	public double distance() {
+		return Utils.distance(point1, point2);
+	}
+
+	@Benchmark
+	public void parseSnapshot(Blackhole blackhole) {
+		SnapshotParser parser = new SnapshotParser(snapshot, 0,
+				snapshot.length);
+		while (parser.next()) {
+			blackhole.consume(parser.vehicleId);
+			blackhole.consume(parser.timestamp);
+			blackhole.consume(parser.latitude);
+			blackhole.consume(parser.longitude);
+		}
+	}
+
+	@Benchmark
+	public boolean tripFollowsPath() {
+		return PathDetector.tripFollowsPath(tripOnPath, path);
+	}
+
+	/* Abandoned early, which is what most paths are during matching */
+	@Benchmark
+	public boolean tripDoesNotFollowPath() {
+		return PathDetector.tripFollowsPath(tripElsewhere, path);
+	}
+
+	@Benchmark
+	public Prediction predictFromTrips() throws ProjectSpecificException {
+		return ArrivalTimePredictor.makePrediction(route.lastStop(),
+				tripInProgress, historicalTrips);
+	}
+
+	@Benchmark
+	public Prediction predictFromHistory() throws ProjectSpecificException {
+		return ArrivalTimePredictor.makePrediction(history, STOPS - 1,
+				tripInProgress);
+	}
+
+	@Benchmark
+	public Prediction[] predictAllStopsFromHistory()
+			throws ProjectSpecificException {
+		return ArrivalTimePredictor.makePredictions(history, 0, STOPS - 1,
+				tripInProgress);
+	}
+
+	@Benchmark
+	public Trip readCsvTrip() {
+		return Trip.readFromFile(csvTrip);
+	}
+
+	@Benchmark
+	public Trip readBinaryTrip() {
+		return Trip.readFromFile(binaryTrip);
+	}
+
+	@Benchmark
+	public void splitTravelHistory() {
+		HistoryIntoTripsSplitter.extractTripsFromTravelHistoryFile(
+				travelHistory, splitTripsFolder);
+	}
+}
@@ -0,0 +1,197 @@
+package bus;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+ * Deterministic synthetic data for the benchmarks: a straight route heading
+ * north from Cambridge, historical trips along it, real time snapshots and a
+ * raw travel history file. The same seed always gives the same data, so
+ * results of different runs (and of different commits) are comparable.
+ *
+ * Usage (writes routes/, trips/, snapshot.json and history.csv into an
+ * existing folder):
+ * java -cp benchmarks.jar bus.SyntheticData output_folder
+ */
+class SyntheticData {
+	static final long SEED = 693L;
+
+	private static final double START_LATITUDE = 52.2;
+	private static final double START_LONGITUDE = 0.1;
+	/* Degrees of latitude in a metre */
+	private static final double DEGREES_IN_METRE = 1.0 / 111_195.0;
+	private static final double STOP_SPACING_METRES = 300.0;
+	/* Points are close enough for every stop to be passed at some point */
+	private static final double POINT_SPACING_METRES = 30.0;
+	/* Tuesday 2016-10-18 06:00:00 UTC */
+	private static final long FIRST_DAY_START = 1476770400L;
+
+	final Random random = new Random(SEED);
+	final Route route;
+	/* The route's geometry, as a recorded path would be */
+	final Trip path;
+
+	SyntheticData(int stops) throws ProjectSpecificException {
+		ArrayList<BusStop> busStops = new ArrayList<BusStop>();
+		for (int s = 0; s < stops; s++) {
+			busStops.add(new BusStop("Stop" + s,
+					latitudeAt(s * STOP_SPACING_METRES), START_LONGITUDE));
+		}
+		route = new Route("SYNTHETIC-1", busStops);
+		path = trip("path", FIRST_DAY_START, 10.0, 0.0, 0.0);
+	}
+
+	private static double latitudeAt(double metres) {
+		return START_LATITUDE + metres * DEGREES_IN_METRE;
+	}
+
+	private double routeLength() {
+		return (route.busStops.size() - 1) * STOP_SPACING_METRES;
+	}
+
+	/*
+	 * A trip along the whole route starting at the timestamp, travelling at
+	 * about metresPerSecond, each point displaced by up to noiseMetres and
+	 * reported up to jitterSeconds late.
+	 */
+	Trip trip(String name, long start, double metresPerSecond,
+			double noiseMetres, double jitterSeconds)
+			throws ProjectSpecificException {
+		ArrayList<GpsPoint> points = new ArrayList<GpsPoint>();
+		double time = start;
+		long lastTimestamp = Long.MIN_VALUE;
+		for (double metres = 0.0; metres <= routeLength();
+				metres += POINT_SPACING_METRES) {
+			/* Some segments are slower, as if a bus was waiting at lights */
+			double speed = metresPerSecond * (0.6 + 0.8 * random.nextDouble());
+			time += POINT_SPACING_METRES / speed;
+			long timestamp = Math.max(lastTimestamp + 1,
+					(long) (time + jitterSeconds * random.nextDouble()));
+			lastTimestamp = timestamp;
+			points.add(new GpsPoint(timestamp,
+					latitudeAt(metres + noise(noiseMetres)),
+					START_LONGITUDE + noise(noiseMetres) * DEGREES_IN_METRE));
+		}
+		return new Trip(name, points);
+	}
+
+	private double noise(double metres) {
+		return metres * (2.0 * random.nextDouble() - 1.0);
+	}
+
+	/*
+	 * Historical trips spread over a week, leaving every few minutes between
+	 * 6:00 and 22:00, at varying speeds.
+	 */
+	ArrayList<Trip> historicalTrips(int count) throws ProjectSpecificException {
+		ArrayList<Trip> trips = new ArrayList<Trip>();
+		for (int t = 0; t < count; t++) {
+			long start = FIRST_DAY_START + (t % 7) * 24 * 3600
+					+ random.nextInt(16 * 3600);
+			trips.add(trip("history" + t, start,
+					6.0 + 6.0 * random.nextDouble(), 5.0, 3.0));
+		}
+		return trips;
+	}
+
+	/* The first points of a trip that has not reached the end yet */
+	Trip tripInProgress(int points) throws ProjectSpecificException {
+		Trip whole = trip("current", FIRST_DAY_START + 3 * 3600, 9.0, 5.0,
+				3.0);
+		return whole.subTrip(0, Math.min(points, whole.size()));
+	}
+
+	/* A trip heading east, which does not follow the route */
+	Trip tripElsewhere() throws ProjectSpecificException {
+		ArrayList<GpsPoint> points = new ArrayList<GpsPoint>();
+		for (int p = 0; p < path.size(); p++) {
+			points.add(new GpsPoint(path.timestamp(p), START_LATITUDE,
+					START_LONGITUDE + p * POINT_SPACING_METRES
+							* DEGREES_IN_METRE));
+		}
+		return new Trip("elsewhere", points);
+	}
+
+	/* Real time snapshot of the given number of vehicles, as JSON bytes */
+	byte[] snapshot(int vehicles) {
+		StringBuilder json = new StringBuilder("[");
+		for (int v = 0; v < vehicles; v++) {
+			if (v > 0) {
+				json.append(",");
+			}
+			json.append("{\"vehicle_id\":\"").append(v)
+					.append("\",\"timestamp\":")
+					.append(FIRST_DAY_START + random.nextInt(60))
+					.append(",\"bearing\":").append(random.nextInt(360))
+					.append(".0,\"latitude\":")
+					.append(String.format("%.6f",
+							START_LATITUDE + 0.1 * random.nextDouble()))
+					.append(",\"longitude\":")
+					.append(String.format("%.6f",
+							START_LONGITUDE + 0.1 * random.nextDouble()))
+					.append(",\"route_id\":\"SYNTHETIC-1\"}");
+		}
+		return json.append("]").toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/*
+	 * GPS history of one bus driving the route back and forth, once a point
+	 * every 20 seconds, in the format HistoryIntoTripsSplitter reads.
+	 */
+	void writeTravelHistory(File file, int journeys)
+			throws ProjectSpecificException {
+		try {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+			Utils.writeLine(writer, "time,latitude,longitude");
+			long start = FIRST_DAY_START;
+			for (int j = 0; j < journeys; j++) {
+				Trip journey = trip("journey" + j, start, 9.0, 3.0, 0.0);
+				long lastWritten = start - 20;
+				for (int p = 0; p < journey.size(); p++) {
+					int index = j % 2 == 0 ? p : journey.size() - 1 - p;
+					long timestamp = start + (journey.timestamp(p)
+							- journey.timestamp(0));
+					if (timestamp - lastWritten < 20) {
+						continue;
+					}
+					lastWritten = timestamp;
+					new GpsPoint(timestamp, journey.latitude(index),
+							journey.longitude(index)).write(writer);
+				}
+				/* A break long enough to end the trip */
+				start = lastWritten + 900;
+			}
+			writer.close();
+		} catch (IOException exception) {
+			throw new RuntimeException(exception);
+		}
+	}
+
+	public static void main(String[] args) throws ProjectSpecificException {
+		Utils.checkCommandLineArguments(args, "folder");
+		File folder = new File(args[0]);
+		File routesFolder = new File(folder, "routes");
+		File tripsFolder = new File(folder, "trips");
+		routesFolder.mkdirs();
+		tripsFolder.mkdirs();
+
+		SyntheticData data = new SyntheticData(30);
+		data.route.writeToFolder(routesFolder);
+		for (Trip trip : data.historicalTrips(500)) {
+			trip.writeToFolder(tripsFolder);
+		}
+		try (FileWriter writer = new FileWriter(
+				new File(folder, "snapshot.json"))) {
+			writer.write(new String(data.snapshot(1000),
+					StandardCharsets.US_ASCII));
+		} catch (IOException exception) {
+			throw new RuntimeException(exception);
+		}
+		data.writeTravelHistory(new File(folder, "history.csv"), 50);
+	}
+}